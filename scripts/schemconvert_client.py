@@ -0,0 +1,121 @@
+"""
+usage: schemconvert_client.py [-h] -input INPUT [-format FORMAT] [-output OUTPUT] [-port PORT] [-upload]
+
+Convert a schematic with a running SchemConvert server (started with `java -jar SchemConvert.jar -serve`),
+so that each conversion doesn't have to start a new JVM. Takes the same arguments as the JAR.
+
+options:
+  -h, --help      show this help message and exit
+  -input INPUT    Input file
+  -format FORMAT  Output format. If not specified, format will be inferred from output file
+  -output OUTPUT  Output file. If not specified, will output to the current folder
+  -port PORT      Port the server is listening on (default: 25580)
+  -upload         Send the file's contents instead of its path, for when the server can't access the file
+"""
+
+import argparse
+import json
+import sys
+import urllib.error
+import urllib.parse
+import urllib.request
+from pathlib import Path
+
+DEFAULT_PORT = 25580
+TOKEN_HEADER = "X-SchemConvert-Token"
+
+
+def read_token(port):
+    """
+    Reads the token the server on the given port wrote when it started.
+
+    Args:
+        port (int): The port the server is listening on.
+
+    Returns:
+        str: The token, or None if there is no server running on that port.
+    """
+    try:
+        return (Path.home() / ".schemconvert" / f"server-{port}.token").read_text().strip()
+    except FileNotFoundError:
+        return None
+
+
+def convert(port, input_path, output_path, output_format, upload):
+    """
+    Asks the server to convert one file.
+
+    Args:
+        port (int): The port the server is listening on.
+        input_path (Path): The file to convert.
+        output_path (Path): Where to save the converted file, or None to derive it from the format.
+        output_format (str): The target format without a leading dot, or None to infer it from the output file.
+        upload (bool): Whether to send the file's contents instead of its path.
+
+    Returns:
+        bool: Whether the conversion succeeded.
+    """
+    if output_path is None:
+        # Like the JAR, save to the current folder with the new extension
+        output_path = Path(input_path.stem + "." + output_format)
+    if output_format is None:
+        output_format = output_path.suffix.lstrip(".")
+
+    if upload:
+        params = {"format": output_format, "name": input_path.name}
+        data = input_path.read_bytes()
+    else:
+        # The server has its own working directory, so paths are sent in full
+        params = {"input": str(input_path.resolve()), "output": str(output_path.resolve()), "format": output_format}
+        data = b""
+
+    token = read_token(port)
+    if token is None:
+        print(f"No server is running on port {port}", file=sys.stderr)
+        return False
+    url = f"http://localhost:{port}/convert?{urllib.parse.urlencode(params)}"
+    request = urllib.request.Request(url, data=data, method="POST", headers={TOKEN_HEADER: token})
+    try:
+        with urllib.request.urlopen(request) as response:
+            time = response.headers.get("X-Conversion-Time")
+            body = response.read()
+    except urllib.error.HTTPError as e:
+        # Failed conversions are reported as JSON with an error message
+        try:
+            print(json.loads(e.read())["error"], file=sys.stderr)
+        except (ValueError, KeyError):
+            print(f"Server returned {e.code}", file=sys.stderr)
+        return False
+    except urllib.error.URLError as e:
+        print(f"Could not reach the server on port {port}: {e.reason}", file=sys.stderr)
+        return False
+
+    if upload:
+        output_path.write_bytes(body)
+    print(f"Successfully converted {input_path} to {output_path} in {float(time):.1f}ms")
+    return True
+
+
+if __name__ == "__main__":
+    # Single-dash long options, to match the JAR's command line
+    parser = argparse.ArgumentParser(description="Convert a schematic with a running SchemConvert server.")
+    parser.add_argument("-input", type=Path, required=True, help="Input file")
+    parser.add_argument("-format", type=str,
+                        help="Output format. If not specified, format will be inferred from output file")
+    parser.add_argument("-output", type=Path,
+                        help="Output file. If not specified, will output to the current folder")
+    parser.add_argument("-port", type=int, default=DEFAULT_PORT,
+                        help=f"Port the server is listening on (default: {DEFAULT_PORT})")
+    parser.add_argument("-upload", action="store_true",
+                        help="Send the file's contents instead of its path, for when the server can't access the file")
+    args = parser.parse_args()
+
+    if args.format is None and args.output is None:
+        parser.error("one of -format or -output is required")
+    if not args.input.is_file():
+        print(f"Input file not found: {args.input}", file=sys.stderr)
+        sys.exit(1)
+
+    output_format = args.format.lstrip(".") if args.format else None
+    if not convert(args.port, args.input, args.output, output_format, args.upload):
+        sys.exit(1)
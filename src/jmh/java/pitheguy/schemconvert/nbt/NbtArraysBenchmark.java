@@ -0,0 +1,64 @@
+package pitheguy.schemconvert.nbt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NbtArraysBenchmark {
+    @Param({"4096", "1048576"})
+    private int length;
+
+    private long[] values;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(0);
+        values = new long[length];
+        for (int i = 0; i < length; i++) values[i] = random.nextLong();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(stream);
+        for (long value : values) out.writeLong(value);
+        encoded = stream.toByteArray();
+    }
+
+    @Benchmark
+    public long[] readPerElement() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        long[] result = new long[length];
+        for (int i = 0; i < length; i++) result[i] = in.readLong();
+        return result;
+    }
+
+    @Benchmark
+    public long[] readBulk() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        long[] result = new long[length];
+        NbtArrays.readLongs(in, result, 0, length);
+        return result;
+    }
+
+    @Benchmark
+    public void writePerElement(Blackhole blackhole) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(encoded.length);
+        DataOutputStream out = new DataOutputStream(stream);
+        for (long value : values) out.writeLong(value);
+        blackhole.consume(stream);
+    }
+
+    @Benchmark
+    public void writeBulk(Blackhole blackhole) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(encoded.length);
+        NbtArrays.writeLongs(new DataOutputStream(stream), values);
+        blackhole.consume(stream);
+    }
+}
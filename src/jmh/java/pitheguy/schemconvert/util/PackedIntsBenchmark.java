@@ -0,0 +1,81 @@
+package pitheguy.schemconvert.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the scalar and SIMD paths of {@link PackedIntArray} and {@link PackedInts}. The SIMD results only differ
+ * from the scalar ones when {@link PackedInts#isVectorized()} is true on the benchmark host.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackedIntsBenchmark {
+    private static final int SIZE = 1 << 20;
+
+    @Param({"2", "4", "5", "8", "12", "16"})
+    private int bitsPerValue;
+
+    @Param({"true", "false"})
+    private boolean spanning;
+
+    private int[] values;
+    private int[] unpacked;
+    private int[] table;
+    private PackedIntArray packed;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        values = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) values[i] = random.nextInt(1 << bitsPerValue);
+        unpacked = new int[SIZE];
+        table = new int[1 << bitsPerValue];
+        for (int i = 0; i < table.length; i++) table[i] = random.nextInt();
+        packed = new PackedIntArray(bitsPerValue, SIZE, spanning);
+        packed.setAll(values);
+    }
+
+    @Benchmark
+    public int[] unpackScalar() {
+        packed.getScalar(0, unpacked, 0, SIZE);
+        return unpacked;
+    }
+
+    @Benchmark
+    public int[] unpackVector() {
+        packed.getAll(unpacked);
+        return unpacked;
+    }
+
+    @Benchmark
+    public long[] packScalar() {
+        packed.setAllScalar(values, 0);
+        return packed.getData();
+    }
+
+    @Benchmark
+    public long[] packVector() {
+        packed.setAll(values);
+        return packed.getData();
+    }
+
+    @Benchmark
+    public int[] translateScalar() {
+        System.arraycopy(values, 0, unpacked, 0, SIZE);
+        PackedInts.translateScalar(unpacked, 0, SIZE, table);
+        return unpacked;
+    }
+
+    @Benchmark
+    public int[] translateVector() {
+        System.arraycopy(values, 0, unpacked, 0, SIZE);
+        PackedInts.translate(unpacked, 0, SIZE, table);
+        return unpacked;
+    }
+}
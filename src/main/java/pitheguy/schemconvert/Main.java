@@ -2,13 +2,22 @@ package pitheguy.schemconvert;
 
 import joptsimple.*;
 import pitheguy.schemconvert.converter.ConversionException;
+import pitheguy.schemconvert.converter.ConversionResult;
 import pitheguy.schemconvert.converter.Converter;
+import pitheguy.schemconvert.converter.DirectoryScanner;
+import pitheguy.schemconvert.converter.OutputCache;
 import pitheguy.schemconvert.converter.formats.SchematicFormat;
 import pitheguy.schemconvert.converter.formats.SchematicFormats;
+import pitheguy.schemconvert.nbt.Compression;
+import pitheguy.schemconvert.server.ConversionServer;
 import pitheguy.schemconvert.ui.Gui;
 import pitheguy.schemconvert.util.Util;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class Main {
     public static void main(String[] args) throws IOException {
@@ -21,12 +30,32 @@ public class Main {
     private static void processCommandLine(String[] args) throws IOException {
         OptionParser parser = new OptionParser();
         parser.accepts("help", "Show this help message").forHelp();
-        parser.accepts("input", "Input file").withRequiredArg().ofType(File.class).required();
+        parser.accepts("serve", "Keep running and accept conversions over HTTP on localhost instead of converting a file");
+        parser.accepts("port", "Port to listen on with -serve (default: " + ConversionServer.DEFAULT_PORT + ")")
+                .withRequiredArg().ofType(Integer.class);
+        parser.accepts("input", "Input file, or a directory to convert recursively").requiredUnless("serve")
+                .withRequiredArg().ofType(File.class);
         parser.accepts("format",
                 "Output format (One of: nbt, schem, litematic). If not specified, format will be inferred from output file")
                 .withRequiredArg().ofType(String.class);
-        parser.accepts("output", "Output file. If not specified, will output to the same folder as the input file.")
-                .requiredUnless("format").withRequiredArg().ofType(File.class);
+        parser.accepts("output",
+                "Output file, or output directory when converting a directory. If not specified, will output to the same folder as the input file.")
+                .requiredUnless("format", "serve").withRequiredArg().ofType(File.class);
+        parser.accepts("compression", "Output compression (One of: fast, default, best)").withRequiredArg()
+                .ofType(String.class);
+        parser.accepts("include",
+                "When converting a directory, only convert files matching this glob. Globs without a / match file names, others match paths relative to the input directory.")
+                .withRequiredArg().ofType(String.class);
+        parser.accepts("exclude", "When converting a directory, skip files matching this glob")
+                .withRequiredArg().ofType(String.class);
+        parser.accepts("threads",
+                "When converting a directory, number of files converted at once. With -serve, number of requests converted at once.")
+                .withRequiredArg().ofType(Integer.class);
+        parser.accepts("incremental",
+                "When converting a directory, skip files that haven't changed since they were last converted into the same output directory");
+        parser.accepts("cache",
+                "Reuse outputs of earlier conversions of identical files, kept in this directory (default: ~/.schemconvert/cache)")
+                .withOptionalArg().ofType(File.class);
         OptionSet options;
         try {
             options = parser.parse(args);
@@ -39,7 +68,23 @@ public class Main {
             parser.printHelpOn(System.out);
             return;
         }
+        if (options.has("compression")) {
+            try {
+                Compression.set(Compression.byName((String) options.valueOf("compression")));
+            } catch (IllegalArgumentException e) {
+                printError(e.getMessage());
+                return;
+            }
+        }
+        if (options.has("serve")) {
+            serve(options);
+            return;
+        }
         File inputFile = (File) options.valueOf("input");
+        if (inputFile.isDirectory()) {
+            processDirectory(options, inputFile);
+            return;
+        }
         Output output = getOutput(options);
         if (output == null)
             return; // Error printed in getOutput
@@ -53,7 +98,9 @@ public class Main {
         if (Converter.SCHEMATIC_EXTENSIONS.stream().noneMatch(ext -> inputFile.getName().endsWith(ext)))
             System.err.println("Unrecognized input file: " + inputFile);
         try {
-            new Converter().convert(inputFile, outputFile, format);
+            Converter converter = new Converter();
+            converter.setCache(getCache(options));
+            converter.convert(inputFile, outputFile, format);
             System.out.println("Successfully converted " + inputFile + " to " + outputFile);
         } catch (IOException e) {
             printError("An error occurred reading or writing to disk: " + e.getMessage());
@@ -65,6 +112,97 @@ public class Main {
         }
     }
 
+    private static void processDirectory(OptionSet options, File inputDir) throws IOException {
+        if (!options.has("format")) {
+            printError("Specify the output format with -format when converting a directory");
+            return;
+        }
+        SchematicFormat format;
+        try {
+            format = SchematicFormats.formatFromExtension("." + options.valueOf("format"));
+        } catch (IllegalArgumentException e) {
+            printError("Unrecognized output format: " + options.valueOf("format"));
+            return;
+        }
+        File outputDir = (File) options.valueOf("output");
+        if (outputDir != null && outputDir.exists() && !outputDir.isDirectory()) {
+            printError("Output must be a directory when converting a directory: " + outputDir);
+            return;
+        }
+        Converter converter;
+        try {
+            converter = options.has("threads") ? new Converter((Integer) options.valueOf("threads")) : new Converter();
+        } catch (IllegalArgumentException e) {
+            printError(e.getMessage());
+            return;
+        }
+        converter.setCache(getCache(options));
+        DirectoryScanner scanner = new DirectoryScanner(inputDir.toPath());
+        for (Object pattern : options.valuesOf("include"))
+            scanner.include((String) pattern);
+        for (Object pattern : options.valuesOf("exclude"))
+            scanner.exclude((String) pattern);
+        List<Converter.Job> jobs = scanner.scan(outputDir == null ? null : outputDir.toPath(), format);
+        if (jobs.isEmpty()) {
+            System.out.println("No schematics found in " + inputDir);
+            return;
+        }
+        Set<File> outputDirs = new HashSet<>();
+        for (Converter.Job job : jobs)
+            if (outputDirs.add(job.output().getParentFile()))
+                Files.createDirectories(job.output().getParentFile().toPath());
+
+        System.out.println("Converting " + jobs.size() + " files...");
+        long start = System.nanoTime();
+        List<ConversionResult> results = options.has("incremental")
+                ? converter.convertIncremental(jobs, outputDir != null ? outputDir : inputDir)
+                : converter.convert(jobs);
+        int failed = 0;
+        int skipped = 0;
+        int cached = 0;
+        for (ConversionResult result : results) {
+            if (result.status() == ConversionResult.Status.SKIPPED) skipped++;
+            if (result.status() == ConversionResult.Status.CACHED) cached++;
+            if (result.isSuccess()) continue;
+            failed++;
+            String message = result.error().getMessage();
+            System.err.println("Failed to convert " + result.input() + (message != null ? ": " + message : ""));
+        }
+        System.out.printf("Converted %d of %d files in %.1fs%n", results.size() - failed - skipped, results.size(),
+                (System.nanoTime() - start) / 1e9);
+        if (skipped > 0)
+            System.out.println(skipped + " files were already up to date");
+        if (cached > 0)
+            System.out.println(cached + " files were copied from the cache");
+        if (failed > 0)
+            System.exit(1);
+    }
+
+    private static void serve(OptionSet options) throws IOException {
+        int port = options.has("port") ? (Integer) options.valueOf("port") : ConversionServer.DEFAULT_PORT;
+        int threads = options.has("threads") ? (Integer) options.valueOf("threads") : Converter.DEFAULT_WORKERS;
+        Converter converter = new Converter();
+        converter.setCache(getCache(options));
+        ConversionServer server;
+        try {
+            server = new ConversionServer(port, threads, converter);
+        } catch (IllegalArgumentException e) {
+            printError(e.getMessage());
+            return;
+        }
+        Converter.warmUp();
+        File tokenFile = server.start().toFile();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        System.out.println("Listening on http://localhost:" + server.getPort() + " with the token in " + tokenFile);
+    }
+
+    private static OutputCache getCache(OptionSet options) {
+        if (!options.has("cache"))
+            return null;
+        File dir = (File) options.valueOf("cache");
+        return new OutputCache(dir != null ? dir.toPath() : OutputCache.defaultDirectory());
+    }
+
     private static Output getOutput(OptionSet options) {
         if (options.has("output") && options.has("format")) {
             File outputFile = (File) options.valueOf("output");
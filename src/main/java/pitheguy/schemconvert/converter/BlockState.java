@@ -0,0 +1,143 @@
+package pitheguy.schemconvert.converter;
+
+import pitheguy.schemconvert.nbt.tags.CompoundTag;
+import pitheguy.schemconvert.nbt.tags.StringTag;
+import pitheguy.schemconvert.nbt.tags.Tag;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A parsed block state such as {@code minecraft:oak_stairs[facing=north,half=top]}. Block states are interned in a
+ * global registry: each distinct state is parsed once, gets a stable id, and has its properties sorted by key so that
+ * states that only differ in property order are the same instance.
+ * <p>
+ * The registry lives as long as the JVM, so it stops growing at {@link #MAX_INTERNED} entries to keep a long-running
+ * process fed with arbitrary inputs from filling the heap. Later states are still parsed, but each call returns a new
+ * instance with an id of -1.
+ */
+public final class BlockState {
+    /**
+     * Maximum number of strings in the registry, which is well above the number of block states in vanilla Minecraft.
+     * Can be set with the {@code schemconvert.maxBlockStates} system property.
+     */
+    public static final int MAX_INTERNED = Integer.getInteger("schemconvert.maxBlockStates", 1 << 17);
+    private static final Map<String, BlockState> BY_STRING = new ConcurrentHashMap<>();
+    private static final List<BlockState> BY_ID = new ArrayList<>();
+
+    private final int id;
+    private final String name;
+    private final Map<String, String> properties;
+    private final String string;
+    // The palette tag's encoded contents, which every tag returned by toTag reads from
+    private final byte[] encodedTag;
+
+    private BlockState(int id, String name, SortedMap<String, String> properties, String string) {
+        this.id = id;
+        this.name = name;
+        this.properties = Collections.unmodifiableMap(new LinkedHashMap<>(properties));
+        this.string = string;
+        CompoundTag tag = new CompoundTag();
+        tag.put("Name", new StringTag(name));
+        if (!properties.isEmpty()) {
+            CompoundTag propertiesTag = new CompoundTag();
+            properties.forEach((key, value) -> propertiesTag.put(key, new StringTag(value)));
+            tag.put("Properties", propertiesTag);
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try {
+            tag.writeContents(new DataOutputStream(encoded));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.encodedTag = encoded.toByteArray();
+    }
+
+    public static BlockState parse(String block) {
+        BlockState state = BY_STRING.get(block);
+        if (state != null) return state;
+        int start = block.indexOf('[');
+        if (start == -1) return register(block, Collections.emptySortedMap(), block);
+        int end = block.indexOf(']', start);
+        if (end == -1) end = block.length();
+        SortedMap<String, String> properties = new TreeMap<>();
+        for (String property : block.substring(start + 1, end).split(",")) {
+            if (property.isEmpty()) continue;
+            int separator = property.indexOf('=');
+            if (separator == -1) throw new ConversionException("Invalid block state: " + block);
+            properties.put(property.substring(0, separator), property.substring(separator + 1));
+        }
+        return register(block.substring(0, start), properties, block);
+    }
+
+    public static BlockState fromTag(CompoundTag tag) {
+        String name = tag.getString("Name");
+        if (!tag.contains("Properties", Tag.TAG_COMPOUND)) return register(name, Collections.emptySortedMap(), null);
+        CompoundTag propertiesTag = tag.getCompound("Properties");
+        SortedMap<String, String> properties = new TreeMap<>();
+        for (String key : propertiesTag.keySet()) properties.put(key, propertiesTag.getString(key));
+        return register(name, properties, null);
+    }
+
+    public static BlockState byId(int id) {
+        synchronized (BY_ID) {
+            return BY_ID.get(id);
+        }
+    }
+
+    private static BlockState register(String name, SortedMap<String, String> properties, String alias) {
+        String canonical = toString(name, properties);
+        if (BY_STRING.size() >= MAX_INTERNED) {
+            BlockState state = BY_STRING.get(canonical);
+            return state != null ? state : new BlockState(-1, name, properties, canonical);
+        }
+        BlockState state = BY_STRING.computeIfAbsent(canonical, key -> {
+            synchronized (BY_ID) {
+                BlockState created = new BlockState(BY_ID.size(), name, properties, key);
+                BY_ID.add(created);
+                return created;
+            }
+        });
+        if (alias != null && !alias.equals(canonical)) BY_STRING.putIfAbsent(alias, state);
+        return state;
+    }
+
+    private static String toString(String name, SortedMap<String, String> properties) {
+        if (properties.isEmpty()) return name;
+        StringJoiner joiner = new StringJoiner(",", name + "[", "]");
+        properties.forEach((key, value) -> joiner.add(key + "=" + value));
+        return joiner.toString();
+    }
+
+    /**
+     * Returns the id of this state in the registry, or -1 if the registry was full when it was parsed.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * Returns the palette tag for this state. Each call returns a new tag over the cached encoding, so it can be
+     * modified or added to an output tree freely, and is written out by copying the encoding if it never is.
+     */
+    public CompoundTag toTag() {
+        return CompoundTag.lazy(encodedTag, 0, encodedTag.length);
+    }
+
+    @Override
+    public String toString() {
+        return string;
+    }
+}
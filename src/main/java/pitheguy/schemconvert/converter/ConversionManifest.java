@@ -0,0 +1,145 @@
+package pitheguy.schemconvert.converter;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records what each output in a directory was converted from, so that an incremental batch can skip inputs that haven't
+ * changed. It is stored as JSON in {@value #FILE_NAME} at the root of the output directory.
+ * <p>
+ * An output is still valid if it was converted to the same format by the same build of SchemConvert (see
+ * {@link Converter#buildId}), hasn't been touched since, and its input has the same size and either the same
+ * modification time or the same SHA-256 hash. Inputs are only hashed when their size matches but their modification
+ * time doesn't, such as after being copied.
+ */
+class ConversionManifest {
+    static final String FILE_NAME = ".schemconvert-manifest.json";
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final TypeToken<Map<String, Entry>> ENTRIES_TYPE = new TypeToken<>() {};
+
+    private final Path root;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private ConversionManifest(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Loads the manifest of an output directory. A missing or unreadable manifest is treated as empty, so everything
+     * is converted again.
+     */
+    static ConversionManifest load(File outputDir) throws IOException {
+        ConversionManifest manifest = new ConversionManifest(outputDir.toPath().toAbsolutePath().normalize());
+        Path file = manifest.root.resolve(FILE_NAME);
+        if (Files.isRegularFile(file)) {
+            try (Reader reader = Files.newBufferedReader(file)) {
+                Map<String, Entry> entries = GSON.fromJson(reader, ENTRIES_TYPE);
+                if (entries != null) manifest.entries.putAll(entries);
+            } catch (JsonParseException e) {
+                System.err.println("Ignoring invalid manifest " + file + ": " + e.getMessage());
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest to a temporary file and moves it into place, so an interrupted save never leaves a
+     * truncated manifest behind.
+     */
+    void save() throws IOException {
+        Files.createDirectories(root);
+        Path temp = Files.createTempFile(root, FILE_NAME, ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp)) {
+                GSON.toJson(new TreeMap<>(entries), ENTRIES_TYPE.getType(), writer);
+            }
+            Files.move(temp, root.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Returns null if the output of the job is still valid. Otherwise, returns an entry describing the input as it is
+     * now, which should be passed to {@link #record} once the output has been written.
+     */
+    Entry check(Converter.Job job) throws IOException {
+        String key = key(job.output());
+        Path input = job.input().toPath().toAbsolutePath().normalize();
+        long size = Files.size(input);
+        long modified = Files.getLastModifiedTime(input).toMillis();
+        String format = job.format().getExtension();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.size() == size && entry.input().equals(input.toString())
+                && entry.format().equals(format) && Converter.buildId() != null
+                && Converter.buildId().equals(entry.version())
+                && isUnchanged(job.output(), entry)) {
+            if (entry.modified() == modified) return null;
+            String hash = hash(input);
+            if (hash.equals(entry.hash())) {
+                entries.put(key, entry.withModified(modified));
+                return null;
+            }
+            return new Entry(input.toString(), size, modified, hash, format, Converter.buildId(), 0, 0);
+        }
+        return new Entry(input.toString(), size, modified, hash(input), format, Converter.buildId(), 0, 0);
+    }
+
+    private static boolean isUnchanged(File output, Entry entry) {
+        return output.isFile() && output.length() == entry.outputSize()
+                && output.lastModified() == entry.outputModified();
+    }
+
+    void record(Converter.Job job, Entry entry) {
+        File output = job.output();
+        entries.put(key(output), entry.withOutput(output.length(), output.lastModified()));
+    }
+
+    void remove(Converter.Job job) {
+        entries.remove(key(job.output()));
+    }
+
+    private String key(File output) {
+        Path path = output.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(root)) return path.toString();
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    record Entry(String input, long size, long modified, String hash, String format, String version, long outputSize,
+                 long outputModified) {
+        Entry withModified(long modified) {
+            return new Entry(input, size, modified, hash, format, version, outputSize, outputModified);
+        }
+
+        Entry withOutput(long outputSize, long outputModified) {
+            return new Entry(input, size, modified, hash, format, version, outputSize, outputModified);
+        }
+    }
+}
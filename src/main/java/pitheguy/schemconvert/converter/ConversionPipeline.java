@@ -0,0 +1,222 @@
+package pitheguy.schemconvert.converter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a batch of conversions as stages connected by bounded queues, so that reading and writing some files overlaps
+ * with decoding and encoding others. Files are read and written on virtual threads, while decoding, thumbnail
+ * generation and encoding run on a fixed pool of platform threads. Gzip inflation and deflation happen within decoding
+ * and encoding, spread over the shared compression pool.
+ * <p>
+ * A file only enters the pipeline once its estimated footprint fits in the memory budget, which it holds until its
+ * output has been written. Inputs larger than {@link #PREFETCH_LIMIT} are streamed from disk by the decoding stage and
+ * their output is written directly, so that they never need whole copies in memory.
+ */
+final class ConversionPipeline {
+    private static final long PREFETCH_LIMIT = 64L << 20;
+    /**
+     * Maximum number of files read or written at once. Can be set with the {@code schemconvert.ioThreads} system
+     * property.
+     */
+    private static final int IO_CONCURRENCY = Integer.getInteger("schemconvert.ioThreads", 16);
+    private static final Task END = new Task(-1, null, 0);
+
+    private final int workers;
+    private final MemoryBudget budget;
+    private final OutputCache cache;
+    private final BlockingQueue<Task> decodeQueue;
+    private final BlockingQueue<Task> writeQueue;
+    private final Semaphore io = new Semaphore(IO_CONCURRENCY);
+    private ConversionResult[] results;
+    private CountDownLatch remaining;
+
+    ConversionPipeline(int workers, MemoryBudget budget, OutputCache cache) {
+        this.workers = workers;
+        this.budget = budget;
+        this.cache = cache;
+        this.decodeQueue = new ArrayBlockingQueue<>(workers * 2);
+        this.writeQueue = new ArrayBlockingQueue<>(workers * 2);
+    }
+
+    /**
+     * Converts every job and returns one result per job, in the same order.
+     */
+    List<ConversionResult> run(List<Converter.Job> jobs) {
+        results = new ConversionResult[jobs.size()];
+        remaining = new CountDownLatch(jobs.size());
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "schemconvert-batch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        boolean interrupted = false;
+        try (ExecutorService ioThreads = Executors.newVirtualThreadPerTaskExecutor();
+                ExecutorService cpuThreads = Executors.newFixedThreadPool(workers, threadFactory)) {
+            for (int i = 0; i < workers; i++) cpuThreads.execute(this::processLoop);
+            ioThreads.execute(() -> writeLoop(ioThreads));
+            for (int i = 0; i < jobs.size(); i++) {
+                Converter.Job job = jobs.get(i);
+                if (!interrupted) {
+                    try {
+                        Task task = new Task(i, job, budget.acquire(MemoryBudget.estimateFootprint(job.input())));
+                        ioThreads.execute(() -> read(task));
+                        continue;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                results[i] = ConversionResult.failed(job.input(), job.output(), new InterruptedException(), Duration.ZERO);
+                remaining.countDown();
+            }
+            while (remaining.getCount() > 0) {
+                try {
+                    remaining.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            // Every task has finished, so the queues are empty and these never block
+            for (int i = 0; i < workers; i++) decodeQueue.add(END);
+            writeQueue.add(END);
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        return Arrays.asList(results);
+    }
+
+    private void read(Task task) {
+        try {
+            Converter.Job job = task.job;
+            io.acquire();
+            try {
+                if (job.input().length() <= PREFETCH_LIMIT)
+                    task.input = Files.readAllBytes(job.input().toPath());
+                if (cache != null) {
+                    task.cacheKey = task.input != null ? cache.key(task.input, job.input(), job.format())
+                            : cache.key(job.input(), job.format());
+                    if (task.cacheKey != null && cache.copyTo(task.cacheKey, job.output())) {
+                        task.cached = true;
+                        finish(task, null);
+                        return;
+                    }
+                }
+            } finally {
+                io.release();
+            }
+            decodeQueue.put(task);
+        } catch (Exception e) {
+            finish(task, e);
+        }
+    }
+
+    private void processLoop() {
+        while (true) {
+            Task task;
+            try {
+                task = decodeQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == END) return;
+            try {
+                Converter.Job job = task.job;
+                Schematic schematic = task.input != null ? Schematic.read(job.input(), task.input) : Schematic.read(job.input());
+                schematic = Converter.prepareForWrite(schematic, job.format());
+                if (task.input != null) {
+                    task.input = null;
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    job.format().write(out, schematic);
+                    task.output = out.toByteArray();
+                } else {
+                    job.format().write(job.output(), schematic);
+                    if (task.cacheKey != null) store(task, () -> cache.put(task.cacheKey, job.output()));
+                }
+                writeQueue.put(task);
+            } catch (Throwable t) {
+                finish(task, t);
+            }
+        }
+    }
+
+    private void writeLoop(ExecutorService ioThreads) {
+        while (true) {
+            Task task;
+            try {
+                task = writeQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == END) return;
+            if (task.output == null) {
+                finish(task, null);
+                continue;
+            }
+            ioThreads.execute(() -> {
+                try {
+                    io.acquire();
+                    try {
+                        Files.write(task.job.output().toPath(), task.output);
+                        if (task.cacheKey != null) store(task, () -> cache.put(task.cacheKey, task.output));
+                    } finally {
+                        io.release();
+                    }
+                    finish(task, null);
+                } catch (Exception e) {
+                    finish(task, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds an output to the cache. The output has already been written, so failing to cache it doesn't fail the
+     * conversion.
+     */
+    private static void store(Task task, CacheWrite write) {
+        try {
+            write.run();
+        } catch (IOException e) {
+            System.err.println("Failed to cache the output of " + task.job.input() + ": " + e.getMessage());
+        }
+    }
+
+    private void finish(Task task, Throwable error) {
+        Converter.Job job = task.job;
+        Duration duration = Duration.ofNanos(System.nanoTime() - task.start);
+        if (error != null) results[task.index] = ConversionResult.failed(job.input(), job.output(), error, duration);
+        else if (task.cached) results[task.index] = ConversionResult.cached(job.input(), job.output(), duration);
+        else results[task.index] = ConversionResult.converted(job.input(), job.output(), duration);
+        task.input = null;
+        task.output = null;
+        budget.release(task.reserved);
+        remaining.countDown();
+    }
+
+    private interface CacheWrite {
+        void run() throws IOException;
+    }
+
+    private static final class Task {
+        private final int index;
+        private final Converter.Job job;
+        private final int reserved;
+        private final long start = System.nanoTime();
+        private byte[] input;
+        private byte[] output;
+        private String cacheKey;
+        private boolean cached;
+
+        private Task(int index, Converter.Job job, int reserved) {
+            this.index = index;
+            this.job = job;
+            this.reserved = reserved;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package pitheguy.schemconvert.converter;
+
+import java.io.File;
+import java.time.Duration;
+
+/**
+ * The outcome of converting one file in a batch. {@code error} is only set for failed conversions. Outputs are cached when
+ * they were copied from an {@link OutputCache}, and skipped by incremental conversions when they are still valid.
+ */
+public record ConversionResult(File input, File output, Status status, Throwable error, Duration duration) {
+    public static ConversionResult converted(File input, File output, Duration duration) {
+        return new ConversionResult(input, output, Status.CONVERTED, null, duration);
+    }
+
+    public static ConversionResult failed(File input, File output, Throwable error, Duration duration) {
+        return new ConversionResult(input, output, Status.FAILED, error, duration);
+    }
+
+    public static ConversionResult cached(File input, File output, Duration duration) {
+        return new ConversionResult(input, output, Status.CACHED, null, duration);
+    }
+
+    public static ConversionResult skipped(File input, File output, Duration duration) {
+        return new ConversionResult(input, output, Status.SKIPPED, null, duration);
+    }
+
+    public boolean isSuccess() {
+        return status != Status.FAILED;
+    }
+
+    public enum Status {
+        CONVERTED,
+        CACHED,
+        SKIPPED,
+        FAILED
+    }
+}
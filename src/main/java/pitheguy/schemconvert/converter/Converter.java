@@ -1,44 +1,364 @@
 package pitheguy.schemconvert.converter;
 
 import pitheguy.schemconvert.converter.formats.SchematicFormat;
+import pitheguy.schemconvert.converter.formats.SchematicFormats;
 import pitheguy.schemconvert.util.Util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class Converter {
     public static final List<String> SCHEMATIC_EXTENSIONS = List.of(".nbt", ".schem", ".litematic", ".bp",
             ".schematic");
+    /**
+     * Version of SchemConvert, taken from the jar manifest.
+     */
+    public static final String VERSION = Objects.requireNonNullElse(
+            Converter.class.getPackage().getImplementationVersion(), "dev");
+    /**
+     * Default number of files converted at once in a batch. Can be set with the {@code schemconvert.batchThreads}
+     * system property.
+     */
+    public static final int DEFAULT_WORKERS = Integer.getInteger("schemconvert.batchThreads",
+            Runtime.getRuntime().availableProcessors());
+    /**
+     * Default fraction of the maximum heap that the files being converted at once may be expected to need. Can be set
+     * with the {@code schemconvert.batchMemoryFraction} system property.
+     */
+    public static final double DEFAULT_MEMORY_FRACTION = Double.parseDouble(
+            System.getProperty("schemconvert.batchMemoryFraction", "0.6"));
+
+    private static class Build {
+        static final String ID = computeBuildId();
+    }
+
+    private final int workers;
+    // Shared by every conversion this converter runs, whether in a batch or on its own
+    private final MemoryBudget budget;
+    private OutputCache cache;
+
+    public Converter() {
+        this(DEFAULT_WORKERS);
+    }
+
+    public Converter(int workers) {
+        this(workers, (long) (Runtime.getRuntime().maxMemory() * DEFAULT_MEMORY_FRACTION));
+    }
+
+    public Converter(int workers, long memoryBudget) {
+        if (workers < 1) throw new IllegalArgumentException("Worker count must be positive");
+        this.workers = workers;
+        this.budget = new MemoryBudget(memoryBudget);
+    }
+
+    /**
+     * Sets a cache to copy outputs from when the same input has been converted to the same format before, and to add
+     * new outputs to. Null disables caching.
+     */
+    public void setCache(OutputCache cache) {
+        this.cache = cache;
+    }
 
     public void convert(File input, File output, SchematicFormat outputFormat) throws IOException, ConversionException {
-        Schematic schematic = Schematic.read(input);
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = cache.key(input, outputFormat);
+            if (cacheKey != null && cache.copyTo(cacheKey, output)) return;
+        }
+        int reserved = reserve(MemoryBudget.estimateFootprint(input));
+        try {
+            Schematic schematic = prepareForWrite(Schematic.read(input), outputFormat);
+            schematic.write(output, outputFormat);
+        } finally {
+            budget.release(reserved);
+        }
+        if (cacheKey == null) return;
+        try {
+            cache.put(cacheKey, output);
+        } catch (IOException e) {
+            System.err.println("Failed to cache the output of " + input + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Converts the contents of a schematic file, returning the contents of the output. {@code name} is the input's file
+     * name, whose extension is used if the contents aren't recognized.
+     */
+    public byte[] convert(byte[] input, String name, SchematicFormat outputFormat) throws IOException,
+            ConversionException {
+        try (Reservation reservation = new Reservation(0)) {
+            return convert(input, name, outputFormat, reservation);
+        }
+    }
+
+    /**
+     * Converts contents that were read under a reservation from {@link #reserveUpload}. The reservation grows if the
+     * contents turn out to need more memory than their length suggested.
+     */
+    public byte[] convert(byte[] input, String name, SchematicFormat outputFormat, Reservation reservation)
+            throws IOException, ConversionException {
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = cache.key(input, new File(name), outputFormat);
+            byte[] cached = cacheKey == null ? null : cache.get(cacheKey);
+            if (cached != null) return cached;
+        }
+        reservation.ensure(MemoryBudget.estimateFootprint(input));
+        Schematic schematic = prepareForWrite(Schematic.read(new File(name), input), outputFormat);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        outputFormat.write(out, schematic);
+        byte[] output = out.toByteArray();
+        if (cacheKey == null) return output;
+        try {
+            cache.put(cacheKey, output);
+        } catch (IOException e) {
+            System.err.println("Failed to cache the output of " + name + ": " + e.getMessage());
+        }
+        return output;
+    }
+
+    /**
+     * Reserves memory for converting contents of the given length before they are read, so that uploads waiting for
+     * their turn don't hold their contents in memory. The reservation is released when closed.
+     */
+    public Reservation reserveUpload(long length) throws InterruptedIOException {
+        return new Reservation(reserve(MemoryBudget.estimateFootprint(length)));
+    }
+
+    /**
+     * Memory reserved from the converter's budget, for uploads that are read and converted separately.
+     */
+    public final class Reservation implements AutoCloseable {
+        private int reserved;
+
+        private Reservation(int reserved) {
+            this.reserved = reserved;
+        }
+
+        /**
+         * Grows the reservation to cover the given footprint. What is already reserved is given back while waiting,
+         * since holding on to it could deadlock with other reservations that are growing.
+         */
+        private void ensure(long footprint) throws InterruptedIOException {
+            if (budget.units(footprint) <= reserved) return;
+            close();
+            reserved = reserve(footprint);
+        }
+
+        @Override
+        public void close() {
+            budget.release(reserved);
+            reserved = 0;
+        }
+    }
+
+    /**
+     * Identifies the code doing the conversions, so that cached and incremental outputs are only reused by the build
+     * that wrote them. The version alone isn't enough, since it stays the same across local builds and is unknown
+     * when running from a build directory. Returns null if the code can't be read, in which case nothing is reused.
+     */
+    static String buildId() {
+        return Build.ID;
+    }
+
+    /**
+     * Digests the jar, or the class files if running from a directory.
+     */
+    private static String computeBuildId() {
+        try {
+            Path location = Path.of(Converter.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+            if (Files.isRegularFile(location)) {
+                digest.update(Files.readAllBytes(location));
+            } else {
+                List<Path> files;
+                try (Stream<Path> walk = Files.walk(location)) {
+                    files = walk.filter(Files::isRegularFile).sorted().toList();
+                }
+                for (Path file : files) {
+                    digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                    digest.update(Files.readAllBytes(file));
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (Exception e) {
+            System.err.println("Outputs won't be reused, since the running code couldn't be identified: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Waits until the memory budget has room for a conversion of the given footprint, as batch jobs do.
+     */
+    private int reserve(long footprint) throws InterruptedIOException {
+        try {
+            return budget.acquire(footprint);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory");
+        }
+    }
+
+    /**
+     * Builds a small schematic and converts it to and from every format in memory, so that mapping tables are loaded
+     * and the conversion code is compiled before the first real conversion.
+     */
+    public static void warmUp() throws IOException {
+        Schematic.Builder builder = new Schematic.Builder(new File("warmup"), -1, 8, 8, 8);
+        String[] blocks = { "minecraft:air", "minecraft:stone", "minecraft:oak_planks", "minecraft:oak_log[axis=y]",
+                "minecraft:glass" };
+        for (int y = 0; y < 8; y++)
+            for (int z = 0; z < 8; z++)
+                for (int x = 0; x < 8; x++)
+                    builder.setBlockAt(x, y, z, blocks[(x + y + z) % blocks.length]);
+        Schematic schematic = builder.build();
+        for (SchematicFormat format : List.of(SchematicFormats.NBT, SchematicFormats.SCHEM, SchematicFormats.LITEMATIC,
+                SchematicFormats.AXIOM, SchematicFormats.CLASSIC)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            format.write(out, prepareForWrite(schematic, format));
+            Schematic.read(new File("warmup" + format.getExtension()), out.toByteArray());
+        }
+    }
+
+    /**
+     * Adds anything the output format needs that the input may not have had, such as a thumbnail.
+     */
+    static Schematic prepareForWrite(Schematic schematic, SchematicFormat outputFormat) {
         if (outputFormat.getExtension().equals(".bp") && schematic.getThumbnail() == null) {
             schematic = schematic.withThumbnail(ThumbnailGenerator.generate(schematic));
         }
-        schematic.write(output, outputFormat);
+        return schematic;
     }
 
-    public List<File> convert(File[] inputs, File outputDir, SchematicFormat outputFormat)
-            throws IOException, ConversionException {
+    /**
+     * Converts every input into the output directory, keeping its name but changing the extension. Returns one result
+     * per input, in the same order.
+     */
+    public List<ConversionResult> convert(File[] inputs, File outputDir, SchematicFormat outputFormat)
+            throws IOException {
         if (!outputDir.isDirectory())
             throw new IOException("Output directory is not a directory!");
-        List<File> failedFiles = new ArrayList<>();
-        for (File file : inputs) {
-            try {
-                Schematic schematic = Schematic.read(file);
-                if (outputFormat.getExtension().equals(".bp") && schematic.getThumbnail() == null) {
-                    schematic = schematic.withThumbnail(ThumbnailGenerator.generate(schematic));
+        List<Job> jobs = new ArrayList<>();
+        for (File input : inputs)
+            jobs.add(new Job(input, new File(outputDir, Util.stripExtension(input.getName()) + outputFormat.getExtension()),
+                    outputFormat));
+        return convert(jobs);
+    }
+
+    /**
+     * Runs a batch of conversions through a {@link ConversionPipeline} with {@code workers} decoding and encoding
+     * threads, and returns one result per job, in the same order. A conversion only starts once its estimated memory
+     * footprint fits in the budget alongside the ones already running, so several huge files are never decoded
+     * together. Jobs that would write the same output file as another job, or overwrite another job's input, fail
+     * instead. Jobs whose input is already their output are skipped.
+     */
+    public List<ConversionResult> convert(List<Job> jobs) {
+        ConversionResult[] results = new ConversionResult[jobs.size()];
+        failCollisions(jobs, results);
+        convertPending(jobs, results);
+        return List.of(results);
+    }
+
+    /**
+     * Fails every job whose output file is also the output of another job, such as {@code a.nbt} and {@code a.schem}
+     * both converted to {@code a.litematic}, since they would run concurrently and overwrite each other. Jobs whose
+     * output is the input of another job, such as {@code a.nbt} converted to {@code .schem} next to {@code a.schem},
+     * fail too rather than destroy that input. Jobs whose output is their own input are skipped.
+     */
+    private static void failCollisions(List<Job> jobs, ConversionResult[] results) {
+        Map<Path, Integer> byInput = new HashMap<>();
+        Map<Path, List<Integer>> byOutput = new HashMap<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            Path input = job.input().toPath().toAbsolutePath().normalize();
+            Path output = job.output().toPath().toAbsolutePath().normalize();
+            byInput.put(input, i);
+            if (output.equals(input)) results[i] = ConversionResult.skipped(job.input(), job.output(), Duration.ZERO);
+            else byOutput.computeIfAbsent(output, path -> new ArrayList<>()).add(i);
+        }
+        for (Map.Entry<Path, List<Integer>> entry : byOutput.entrySet()) {
+            Integer source = byInput.get(entry.getKey());
+            List<Integer> indices = entry.getValue();
+            if (source == null && indices.size() < 2) continue;
+            for (int index : indices) {
+                Job job = jobs.get(index);
+                String message;
+                if (source != null) {
+                    message = "Output " + job.output() + " would overwrite the input " + jobs.get(source).input();
+                } else {
+                    String others = indices.stream().filter(other -> other != index)
+                            .map(other -> jobs.get(other).input().getPath()).collect(Collectors.joining(", "));
+                    message = "Output " + job.output() + " would also be written from " + others;
                 }
-                File outputFile = new File(outputDir,
-                        Util.stripExtension(file.getName()) + outputFormat.getExtension());
-                schematic.write(outputFile, outputFormat);
-            } catch (Exception e) {
-                failedFiles.add(file);
-                e.printStackTrace();
+                results[index] = ConversionResult.failed(job.input(), job.output(), new ConversionException(message),
+                        Duration.ZERO);
+            }
+        }
+    }
+
+    /**
+     * Converts the jobs that don't have a result yet and fills in their results. Returns the indices of those jobs.
+     */
+    private List<Integer> convertPending(List<Job> jobs, ConversionResult[] results) {
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < jobs.size(); i++)
+            if (results[i] == null) pending.add(i);
+        List<ConversionResult> converted = new ConversionPipeline(workers, budget, cache)
+                .run(pending.stream().map(jobs::get).toList());
+        for (int i = 0; i < converted.size(); i++)
+            results[pending.get(i)] = converted.get(i);
+        return pending;
+    }
+
+    /**
+     * Like {@link #convert(List)}, but skips jobs whose output is still valid according to the manifest in
+     * {@code outputDir}, which is updated afterwards. See {@link ConversionManifest} for when an output is valid.
+     */
+    public List<ConversionResult> convertIncremental(List<Job> jobs, File outputDir) throws IOException {
+        ConversionManifest manifest = ConversionManifest.load(outputDir);
+        ConversionResult[] results = new ConversionResult[jobs.size()];
+        ConversionManifest.Entry[] entries = new ConversionManifest.Entry[jobs.size()];
+        failCollisions(jobs, results);
+        // Mostly stat calls, but inputs whose modification time changed are hashed, which is worth spreading out
+        IntStream.range(0, jobs.size()).parallel().forEach(i -> {
+            if (results[i] != null) return;
+            Job job = jobs.get(i);
+            long start = System.nanoTime();
+            try {
+                entries[i] = manifest.check(job);
+                if (entries[i] == null)
+                    results[i] = ConversionResult.skipped(job.input(), job.output(),
+                            Duration.ofNanos(System.nanoTime() - start));
+            } catch (IOException e) {
+                results[i] = ConversionResult.failed(job.input(), job.output(), e,
+                        Duration.ofNanos(System.nanoTime() - start));
             }
+        });
+        for (int index : convertPending(jobs, results)) {
+            if (results[index].isSuccess()) manifest.record(jobs.get(index), entries[index]);
+            else manifest.remove(jobs.get(index));
         }
-        return failedFiles;
+        for (int i = 0; i < jobs.size(); i++)
+            if (entries[i] == null && !results[i].isSuccess()) manifest.remove(jobs.get(i));
+        manifest.save();
+        return List.of(results);
+    }
+
+    /**
+     * A single conversion in a batch.
+     */
+    public record Job(File input, File output, SchematicFormat format) {
     }
 }
@@ -0,0 +1,99 @@
+package pitheguy.schemconvert.converter;
+
+import pitheguy.schemconvert.converter.formats.SchematicFormat;
+import pitheguy.schemconvert.util.Util;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the schematics under a directory for a batch conversion, and gives each one an output file in a tree that
+ * mirrors the input tree.
+ * <p>
+ * Patterns are globs. Patterns without a {@code /} are matched against file names, and others against the path
+ * relative to the root, so {@code *.schem} matches at any depth while {@code old/**} only matches under {@code old}.
+ * Without any include patterns, every file with a schematic extension is included.
+ */
+public class DirectoryScanner {
+    private final Path root;
+    private final List<PathMatcher> includes = new ArrayList<>();
+    private final List<PathMatcher> excludes = new ArrayList<>();
+
+    public DirectoryScanner(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    public DirectoryScanner include(String pattern) {
+        includes.add(new Matcher(pattern));
+        return this;
+    }
+
+    public DirectoryScanner exclude(String pattern) {
+        excludes.add(new Matcher(pattern));
+        return this;
+    }
+
+    /**
+     * Returns a job for every matching file, sorted by path. Outputs go under {@code outputRoot} at the same relative
+     * path, or next to their inputs if it is null. If the output directory is inside the root, it is not scanned.
+     * Files that are already in the target format get a job whose output is the file itself, which
+     * {@link Converter#convert(List)} skips, so that no other job may overwrite them.
+     */
+    public List<Converter.Job> scan(Path outputRoot, SchematicFormat format) throws IOException {
+        Path outputDir = outputRoot == null ? root : outputRoot.toAbsolutePath().normalize();
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root) && dir.equals(outputDir)) return FileVisitResult.SKIP_SUBTREE;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && matches(root.relativize(file))) files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        files.sort(Comparator.naturalOrder());
+        List<Converter.Job> jobs = new ArrayList<>(files.size());
+        for (Path file : files) {
+            Path relative = root.relativize(file);
+            Path output = outputDir.resolve(relative)
+                    .resolveSibling(Util.stripExtension(file.getFileName().toString()) + format.getExtension());
+            jobs.add(new Converter.Job(file.toFile(), output.toFile(), format));
+        }
+        return jobs;
+    }
+
+    private boolean matches(Path relative) {
+        for (PathMatcher exclude : excludes)
+            if (exclude.matches(relative)) return false;
+        if (includes.isEmpty()) {
+            String name = relative.getFileName().toString().toLowerCase();
+            return Converter.SCHEMATIC_EXTENSIONS.stream().anyMatch(name::endsWith);
+        }
+        for (PathMatcher include : includes)
+            if (include.matches(relative)) return true;
+        return false;
+    }
+
+    private static class Matcher implements PathMatcher {
+        private final PathMatcher matcher;
+        private final boolean nameOnly;
+
+        private Matcher(String pattern) {
+            this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            this.nameOnly = !pattern.contains("/");
+        }
+
+        @Override
+        public boolean matches(Path relative) {
+            return matcher.matches(nameOnly ? relative.getFileName() : relative);
+        }
+    }
+}
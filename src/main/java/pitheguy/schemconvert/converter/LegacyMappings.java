@@ -7,14 +7,20 @@ import com.google.gson.reflect.TypeToken;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class LegacyMappings {
-    private static final Map<Integer, String> LEGACY_TO_MODERN = new HashMap<>();
+    /**
+     * Number of legacy states: 256 block ids with 16 data values each.
+     */
+    public static final int LEGACY_STATES = 256 << 4;
+    private static final String[] LEGACY_TO_MODERN = new String[LEGACY_STATES];
     private static final Map<String, Integer> MODERN_TO_LEGACY = new HashMap<>();
 
     static {
+        Arrays.fill(LEGACY_TO_MODERN, "minecraft:air");
         loadMappings();
     }
 
@@ -30,14 +36,14 @@ public class LegacyMappings {
 
                 for (Map.Entry<String, String> entry : blocks.entrySet()) {
                     String key = entry.getKey(); // "id:data"
-                    String value = entry.getValue(); // "minecraft:block"
+                    String value = BlockState.parse(entry.getValue()).toString(); // "minecraft:block"
 
                     String[] parts = key.split(":");
                     int id = Integer.parseInt(parts[0]);
                     int data = Integer.parseInt(parts[1]);
                     int packed = (id << 4) | (data & 0xF);
 
-                    LEGACY_TO_MODERN.put(packed, value);
+                    LEGACY_TO_MODERN[packed] = value;
                     // Only map modern to legacy if not already present (prefer default data 0 if
                     // duplicates exist, though usually they are unique variants)
                     MODERN_TO_LEGACY.putIfAbsent(value, packed);
@@ -50,10 +56,19 @@ public class LegacyMappings {
 
     public static String getModernBlock(int id, int data) {
         int packed = (id << 4) | (data & 0xF);
-        return LEGACY_TO_MODERN.getOrDefault(packed, "minecraft:air");
+        return packed >= 0 && packed < LEGACY_STATES ? LEGACY_TO_MODERN[packed] : "minecraft:air";
+    }
+
+    /**
+     * Returns a copy of the legacy to modern table, indexed by {@code id << 4 | data}. Unmapped states are air.
+     */
+    public static String[] getModernBlockTable() {
+        return LEGACY_TO_MODERN.clone();
     }
 
     public static int getLegacyId(String modernBlock) {
+        if (modernBlock == null)
+            return 0;
         Integer packed = MODERN_TO_LEGACY.get(modernBlock);
         if (packed == null) {
             // Fallback or error? For now return 0 (air) but maybe we should warn?
@@ -0,0 +1,87 @@
+package pitheguy.schemconvert.converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits how much memory concurrent conversions may expect to need at once. Each conversion reserves its estimated
+ * footprint before it starts and waits while the budget is used up. A conversion that needs more than the whole budget
+ * waits until it can reserve all of it, so it runs alone.
+ */
+class MemoryBudget {
+    // Reservations are tracked in KiB so that budgets of several terabytes still fit in an int
+    private static final int UNIT_SHIFT = 10;
+    // Typical size of decompressed NBT relative to the gzip file, used when the gzip trailer doesn't tell
+    private static final int COMPRESSION_RATIO = 8;
+    // Decoded schematics keep the NBT bytes, the block storage and the output buffers alive at the same time
+    private static final int DECODE_OVERHEAD = 3;
+
+    private final int capacity;
+    private final Semaphore permits;
+
+    MemoryBudget(long bytes) {
+        this.capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes >> UNIT_SHIFT));
+        this.permits = new Semaphore(capacity, true);
+    }
+
+    /**
+     * Reserves memory for a conversion and returns the amount reserved, to be passed to {@link #release}.
+     */
+    int acquire(long bytes) throws InterruptedException {
+        int units = units(bytes);
+        permits.acquire(units);
+        return units;
+    }
+
+    /**
+     * Returns the amount {@link #acquire} would reserve for the given number of bytes.
+     */
+    int units(long bytes) {
+        return (int) Math.max(1, Math.min(capacity, bytes >> UNIT_SHIFT));
+    }
+
+    void release(int units) {
+        permits.release(units);
+    }
+
+    /**
+     * Estimates the memory needed to convert a file from its size and, for single-member gzip files, the uncompressed
+     * size recorded in its trailer.
+     */
+    static long estimateFootprint(File file) {
+        long length = file.length();
+        long decompressed = length * COMPRESSION_RATIO;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (length >= 18 && in.readUnsignedByte() == 0x1F && in.readUnsignedByte() == 0x8B) {
+                in.seek(length - 4);
+                long trailerSize = Integer.toUnsignedLong(Integer.reverseBytes(in.readInt()));
+                decompressed = Math.max(decompressed, trailerSize);
+            }
+        } catch (IOException e) {
+            // The conversion itself will report the problem
+        }
+        return decompressed * DECODE_OVERHEAD;
+    }
+
+    /**
+     * Estimates the memory needed to convert contents of the given length before they are read, from their size alone.
+     */
+    static long estimateFootprint(long length) {
+        return length * COMPRESSION_RATIO * DECODE_OVERHEAD;
+    }
+
+    /**
+     * Estimates the memory needed to convert the contents of a file, as for {@link #estimateFootprint(File)}.
+     */
+    static long estimateFootprint(byte[] data) {
+        long decompressed = (long) data.length * COMPRESSION_RATIO;
+        if (data.length >= 18 && (data[0] & 0xFF) == 0x1F && (data[1] & 0xFF) == 0x8B) {
+            long trailerSize = (data[data.length - 4] & 0xFFL) | (data[data.length - 3] & 0xFFL) << 8
+                    | (data[data.length - 2] & 0xFFL) << 16 | (data[data.length - 1] & 0xFFL) << 24;
+            decompressed = Math.max(decompressed, trailerSize);
+        }
+        return decompressed * DECODE_OVERHEAD;
+    }
+}
@@ -0,0 +1,225 @@
+package pitheguy.schemconvert.converter;
+
+import pitheguy.schemconvert.converter.formats.SchematicFormat;
+import pitheguy.schemconvert.nbt.Compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An on-disk cache of converted outputs, so that copies of the same schematic under different names or paths are only
+ * converted once. Entries are keyed by the SHA-256 hash of the input's contents together with the output format, the
+ * compression settings and the SchemConvert version, as well as whatever the format copies from the source file
+ * (see {@link SchematicFormat#describeSource}), such as the file name for Litematic and Axiom outputs.
+ * <p>
+ * Entries are written to a temporary file and renamed into place, so several processes can share a cache directory
+ * without seeing partial entries. Reading an entry updates its modification time, and once the cache grows past its
+ * size limit the least recently used entries are deleted.
+ */
+public class OutputCache {
+    /**
+     * Default size limit in bytes. Can be set in MiB with the {@code schemconvert.cacheSize} system property.
+     */
+    public static final long DEFAULT_MAX_SIZE = Long.getLong("schemconvert.cacheSize", 1024) << 20;
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Evicting down to a bit below the limit means that eviction doesn't run again on every store
+    private static final double EVICTION_TARGET = 0.9;
+
+    private final Path dir;
+    private final long maxSize;
+    // Estimate of the total size of the entries, or -1 until the directory has been scanned
+    private final AtomicLong size = new AtomicLong(-1);
+
+    public OutputCache(Path dir) {
+        this(dir, DEFAULT_MAX_SIZE);
+    }
+
+    public OutputCache(Path dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * The cache directory used when none is given, set with the {@code schemconvert.cacheDir} system property or
+     * {@code .schemconvert/cache} in the user's home directory otherwise.
+     */
+    public static Path defaultDirectory() {
+        String dir = System.getProperty("schemconvert.cacheDir");
+        if (dir != null) return Path.of(dir);
+        return Path.of(System.getProperty("user.home"), ".schemconvert", "cache");
+    }
+
+    /**
+     * Returns the key for converting {@code input}, the contents of {@code source}, or null if the output can't be
+     * cached.
+     */
+    public String key(byte[] input, File source, SchematicFormat format) throws IOException {
+        String description = format.describeSource(source);
+        if (description == null || Converter.buildId() == null) return null;
+        MessageDigest digest = newDigest();
+        digest.update(input);
+        return finishKey(digest, format, description);
+    }
+
+    /**
+     * Returns the key for converting {@code input}, or null if the output can't be cached.
+     */
+    public String key(File input, SchematicFormat format) throws IOException {
+        String description = format.describeSource(input);
+        if (description == null || Converter.buildId() == null) return null;
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(input.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+        }
+        return finishKey(digest, format, description);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String finishKey(MessageDigest digest, SchematicFormat format, String source) {
+        // Everything besides the input's contents that changes the output bytes
+        String options = "\0" + format.getExtension() + "\0" + Compression.get() + "\0" + Converter.buildId() + "\0"
+                + source;
+        digest.update(options.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private Path path(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    /**
+     * Copies the cached output for a key to {@code output}. Returns false if there is none.
+     */
+    public boolean copyTo(String key, File output) throws IOException {
+        Path entry = path(key);
+        try {
+            Files.copy(entry, output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            // Either never stored or evicted, possibly by another process just now
+            return false;
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // The entry was evicted after being copied, which is fine
+        }
+        return true;
+    }
+
+    /**
+     * Returns the cached output for a key, or null if there is none.
+     */
+    public byte[] get(String key) throws IOException {
+        Path entry = path(key);
+        byte[] output;
+        try {
+            output = Files.readAllBytes(entry);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // The entry was evicted after being read, which is fine
+        }
+        return output;
+    }
+
+    public void put(String key, byte[] output) throws IOException {
+        if (output.length > maxSize) return;
+        Path temp = createTemp(key);
+        try {
+            Files.write(temp, output);
+            commit(key, temp, output.length);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public void put(String key, File output) throws IOException {
+        long length = output.length();
+        if (length > maxSize) return;
+        Path temp = createTemp(key);
+        try {
+            Files.copy(output.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+            commit(key, temp, length);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path createTemp(String key) throws IOException {
+        Path parent = path(key).getParent();
+        Files.createDirectories(parent);
+        return Files.createTempFile(parent, key, TEMP_SUFFIX);
+    }
+
+    private void commit(String key, Path temp, long length) throws IOException {
+        Files.move(temp, path(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (size.get() < 0) evict();
+        else if (size.addAndGet(length) > maxSize) evict();
+    }
+
+    /**
+     * Scans the cache and deletes the least recently used entries until it is under the target size. This also
+     * counts entries stored by other processes, which the size estimate doesn't include.
+     */
+    private synchronized void evict() throws IOException {
+        record Entry(Path path, long size, long lastUsed) {
+        }
+        List<Entry> entries = new ArrayList<>();
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && !file.getFileName().toString().endsWith(TEMP_SUFFIX))
+                    entries.add(new Entry(file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                // Evicted or committed by another process while walking
+                if (e instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+                throw e;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                if (e != null && !(e instanceof NoSuchFileException)) throw e;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        long total = entries.stream().mapToLong(Entry::size).sum();
+        if (total > maxSize) {
+            long target = (long) (maxSize * EVICTION_TARGET);
+            entries.sort(Comparator.comparingLong(Entry::lastUsed));
+            for (Entry entry : entries) {
+                if (total <= target) break;
+                Files.deleteIfExists(entry.path());
+                total -= entry.size();
+            }
+        }
+        size.set(total);
+    }
+}
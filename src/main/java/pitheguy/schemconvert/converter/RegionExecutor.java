@@ -0,0 +1,33 @@
+package pitheguy.schemconvert.converter;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Runs independent per-region work, such as decoding or encoding the sections of a schematic, on a shared pool. The
+ * worker count can be set with the {@code schemconvert.regionThreads} system property.
+ */
+public final class RegionExecutor {
+    private static final ForkJoinPool POOL = new ForkJoinPool(Integer.getInteger("schemconvert.regionThreads",
+            Runtime.getRuntime().availableProcessors()));
+
+    private RegionExecutor() {
+    }
+
+    public static int getParallelism() {
+        return POOL.getParallelism();
+    }
+
+    /**
+     * Calls {@code action} for every index from 0 to {@code count - 1} and waits for all of them to finish. Calls may
+     * run concurrently and in any order, so each one should only write to state owned by its index.
+     */
+    public static void forEach(int count, IntConsumer action) {
+        if (count <= 1 || POOL.getParallelism() == 1) {
+            for (int i = 0; i < count; i++) action.accept(i);
+            return;
+        }
+        POOL.submit(() -> IntStream.range(0, count).parallel().forEach(action)).join();
+    }
+}
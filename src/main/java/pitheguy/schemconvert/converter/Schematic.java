@@ -1,6 +1,7 @@
 package pitheguy.schemconvert.converter;
 
 import pitheguy.schemconvert.converter.formats.*;
+import pitheguy.schemconvert.converter.storage.BlockStorage;
 import pitheguy.schemconvert.nbt.tags.CompoundTag;
 import pitheguy.schemconvert.util.Util;
 
@@ -9,7 +10,7 @@ import java.io.IOException;
 import java.util.*;
 
 public class Schematic {
-    private final String[][][] blocks;
+    private final BlockStorage blocks;
     private final List<String> palette;
     private final Map<Pos, CompoundTag> blockEntities;
     private final List<Entity> entities;
@@ -17,7 +18,7 @@ public class Schematic {
     private final File sourceFile;
     private final byte[] thumbnail;
 
-    private Schematic(String[][][] blocks, List<String> palette, Map<Pos, CompoundTag> blockEntities,
+    private Schematic(BlockStorage blocks, List<String> palette, Map<Pos, CompoundTag> blockEntities,
             List<Entity> entities, int dataVersion, File sourceFile, byte[] thumbnail) {
         this.blocks = blocks;
         this.palette = palette;
@@ -36,31 +37,37 @@ public class Schematic {
         return new Schematic(blocks, palette, blockEntities, entities, dataVersion, sourceFile, thumbnail);
     }
 
+    /**
+     * Reads a schematic in whichever format its contents are in, falling back to its extension if the contents aren't
+     * recognized.
+     */
     public static Schematic read(File file) throws IOException {
-        String extension = Util.getExtension(file.getName());
-        return switch (extension) {
-            case ".nbt" -> SchematicFormats.NBT.read(file);
-            case ".schem" -> SchematicFormats.SCHEM.read(file);
-            case ".litematic" -> SchematicFormats.LITEMATIC.read(file);
-            case ".bp" -> SchematicFormats.AXIOM.read(file);
-            case ".schematic" -> SchematicFormats.CLASSIC.read(file);
-            default -> throw new IllegalArgumentException("Unsupported format: " + extension);
-        };
+        SchematicFormat format = SchematicFormats.detect(file);
+        if (format == null) format = SchematicFormats.formatFromExtension(Util.getExtension(file.getName()));
+        return format.read(file);
+    }
+
+    /**
+     * Reads a schematic from contents that have already been loaded, like {@link #read(File)}. {@code file} is used
+     * for its extension and recorded as the schematic's source.
+     */
+    public static Schematic read(File file, byte[] data) throws IOException {
+        SchematicFormat format = SchematicFormats.detect(data);
+        if (format == null) format = SchematicFormats.formatFromExtension(Util.getExtension(file.getName()));
+        return format.read(file, data);
     }
 
     public int[] getSize() {
-        return new int[] { blocks.length, blocks[0].length, blocks[0][0].length };
+        return new int[] { blocks.getXSize(), blocks.getYSize(), blocks.getZSize() };
     }
 
     public String getBlock(int x, int y, int z) {
-        return blocks[x][y][z];
+        int id = blocks.get(x, y, z);
+        return id == -1 ? null : palette.get(id);
     }
 
     public int getPaletteBlock(int x, int y, int z) {
-        String block = getBlock(x, y, z);
-        if (block == null)
-            return -1;
-        return palette.indexOf(block);
+        return blocks.get(x, y, z);
     }
 
     public List<String> getPalette() {
@@ -96,12 +103,17 @@ public class Schematic {
     }
 
     public int countNonEmptyBlocks() {
+        boolean[] empty = new boolean[palette.size()];
+        for (int i = 0; i < empty.length; i++)
+            empty[i] = isEmpty(palette.get(i));
         int count = 0;
-        for (String[][] layer : blocks)
-            for (String[] column : layer)
-                for (String block : column)
-                    if (!isEmpty(block))
+        for (int y = 0; y < blocks.getYSize(); y++)
+            for (int z = 0; z < blocks.getZSize(); z++)
+                for (int x = 0; x < blocks.getXSize(); x++) {
+                    int id = blocks.get(x, y, z);
+                    if (id != -1 && !empty[id])
                         count++;
+                }
         return count;
     }
 
@@ -110,29 +122,59 @@ public class Schematic {
     }
 
     public static class Builder {
-        private String[][][] blocks;
-        private final SequencedSet<String> palette;
+        private BlockStorage blocks;
+        private final List<String> palette;
+        private final Map<String, Integer> paletteIds;
         private final Map<Pos, CompoundTag> blockEntities;
         private final List<Entity> entities;
         private final File sourceFile;
-        private final int dataVersion;
+        private int dataVersion;
 
         public Builder(File sourceFile, int dataVersion, int xSize, int ySize, int zSize) {
-            this.blocks = new String[xSize][ySize][zSize];
-            this.palette = new LinkedHashSet<>();
+            this(sourceFile, dataVersion, BlockStorage.create(xSize, ySize, zSize));
+        }
+
+        public Builder(File sourceFile, int dataVersion, int[] size) {
+            this(sourceFile, dataVersion, size[0], size[1], size[2]);
+        }
+
+        public Builder(File sourceFile, int dataVersion, BlockStorage blocks) {
+            this.blocks = blocks;
+            this.palette = new ArrayList<>();
+            this.paletteIds = new HashMap<>();
             this.blockEntities = new HashMap<>();
             this.entities = new ArrayList<>();
             this.sourceFile = sourceFile;
             this.dataVersion = dataVersion;
         }
 
-        public Builder(File sourceFile, int dataVersion, int[] size) {
-            this(sourceFile, dataVersion, size[0], size[1], size[2]);
+        public void setBlockAt(int x, int y, int z, String block) {
+            this.blocks.set(x, y, z, block == null ? -1 : getPaletteId(block));
         }
 
-        public void setBlockAt(int x, int y, int z, String block) {
-            this.blocks[x][y][z] = block;
-            palette.add(block);
+        /**
+         * Sets a block by its palette id, as returned by {@link #getPaletteId}. An id of -1 removes the block.
+         */
+        public void setBlockIdAt(int x, int y, int z, int id) {
+            this.blocks.set(x, y, z, id);
+        }
+
+        /**
+         * Returns the palette id of a block, adding it to the palette if needed.
+         */
+        public int getPaletteId(String block) {
+            Integer id = paletteIds.get(block);
+            if (id == null) {
+                String canonical = BlockState.parse(block).toString();
+                id = paletteIds.get(canonical);
+                if (id == null) {
+                    id = palette.size();
+                    palette.add(canonical);
+                    paletteIds.put(canonical, id);
+                }
+                paletteIds.put(block, id);
+            }
+            return id;
         }
 
         public void addBlockEntity(int x, int y, int z, CompoundTag entity) {
@@ -144,22 +186,38 @@ public class Schematic {
         }
 
         public Builder trim() {
+            boolean[] empty = new boolean[palette.size()];
+            for (int i = 0; i < empty.length; i++)
+                empty[i] = isEmpty(palette.get(i));
+            int xSize = blocks.getXSize();
+            int ySize = blocks.getYSize();
+            int zSize = blocks.getZSize();
             int minY = 0;
-            loop: for (int y = 0; y < blocks[0].length; y++) {
-                for (int x = 0; x < blocks.length; x++)
-                    for (int z = 0; z < blocks[0][0].length; z++)
-                        if (!isEmpty(blocks[x][y][z]))
+            loop: for (int y = 0; y < ySize; y++) {
+                for (int z = 0; z < zSize; z++)
+                    for (int x = 0; x < xSize; x++) {
+                        int id = blocks.get(x, y, z);
+                        if (id != -1 && !empty[id])
                             break loop;
+                    }
                 minY++;
             }
-            String[][][] newBlocks = new String[blocks.length][blocks[0].length - minY][blocks[0][0].length];
-            for (int y = minY; y < blocks[0].length; y++)
-                for (int x = 0; x < blocks.length; x++)
-                    System.arraycopy(blocks[x][y], 0, newBlocks[x][y - minY], 0, blocks[0][0].length);
+            if (minY == 0)
+                return this;
+            BlockStorage newBlocks = blocks.createEmpty(xSize, ySize - minY, zSize);
+            for (int y = minY; y < ySize; y++)
+                for (int z = 0; z < zSize; z++)
+                    for (int x = 0; x < xSize; x++)
+                        newBlocks.set(x, y - minY, z, blocks.get(x, y, z));
             blocks = newBlocks;
             return this;
         }
 
+        public Builder setDataVersion(int dataVersion) {
+            this.dataVersion = dataVersion;
+            return this;
+        }
+
         private byte[] thumbnail;
 
         public Builder setThumbnail(byte[] thumbnail) {
@@ -168,7 +226,8 @@ public class Schematic {
         }
 
         public Schematic build() {
-            return new Schematic(blocks, palette.stream().toList(), blockEntities, entities, dataVersion, sourceFile,
+            blocks.compact();
+            return new Schematic(blocks, List.copyOf(palette), blockEntities, entities, dataVersion, sourceFile,
                     thumbnail);
         }
     }
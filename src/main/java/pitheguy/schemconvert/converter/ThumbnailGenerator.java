@@ -17,10 +17,12 @@ import java.lang.reflect.Type;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ThumbnailGenerator {
     private static final Map<String, Color> COLOR_MAP = new HashMap<>();
-    private static final Map<String, BufferedImage> TEXTURE_CACHE = new HashMap<>(); // Cache for loaded textures
+    // Cache for loaded textures, shared by thumbnails generated concurrently
+    private static final Map<String, BufferedImage> TEXTURE_CACHE = new ConcurrentHashMap<>();
     private static final int THUMBNAIL_SIZE = 256;
     private static final int BLOCK_SIZE = 16; // 16 matches standard texture size, best for quality
 
@@ -63,9 +65,6 @@ public class ThumbnailGenerator {
 
     // Attempt to load texture from ./textures/block/name.png
     private static BufferedImage getTexture(String name) {
-        if (TEXTURE_CACHE.containsKey(name))
-            return TEXTURE_CACHE.get(name);
-
         File textureFile = new File("textures/block/" + name + ".png");
         if (!textureFile.exists()) {
             // Try stripping 'minecraft:' prefix if present and file absent
@@ -245,19 +244,16 @@ public class ThumbnailGenerator {
     }
 
     private static BufferedImage loadOrGenerateTexture(String name, Color baseColor) {
-        if (TEXTURE_CACHE.containsKey(name))
-            return TEXTURE_CACHE.get(name);
-
-        // 1. Try Loading External File
-        BufferedImage img = getTexture(name);
-
-        // 2. If missing, Generate Synthetic
-        if (img == null) {
-            img = generateSyntheticTexture(name, baseColor);
-        }
+        return TEXTURE_CACHE.computeIfAbsent(name, key -> {
+            // 1. Try Loading External File
+            BufferedImage img = getTexture(key);
 
-        TEXTURE_CACHE.put(name, img);
-        return img;
+            // 2. If missing, Generate Synthetic
+            if (img == null) {
+                img = generateSyntheticTexture(key, baseColor);
+            }
+            return img;
+        });
     }
 
     // Generates a 16x16 pixel art texture procedurally
@@ -1,22 +1,36 @@
 package pitheguy.schemconvert.converter.formats;
 
-import pitheguy.schemconvert.converter.Schematic;
-import pitheguy.schemconvert.converter.SchematicParseException;
-import pitheguy.schemconvert.nbt.NbtUtil;
+import pitheguy.schemconvert.converter.*;
+import pitheguy.schemconvert.converter.storage.SectionedBlockStorage;
+import pitheguy.schemconvert.nbt.*;
 import pitheguy.schemconvert.nbt.tags.*;
+import pitheguy.schemconvert.util.PackedIntArray;
+import pitheguy.schemconvert.util.PackedInts;
 import pitheguy.schemconvert.util.Util;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class AxiomSchematicFormat implements SchematicFormat {
-    private static final int MAGIC = 0x0AE5BB36;
+    static final int MAGIC = 0x0AE5BB36;
+    private static final int DECODE_BATCH_SIZE = 1024;
+    private static final String STRUCTURE_VOID = "minecraft:structure_void";
 
     @Override
     public Schematic read(File file) throws IOException {
-        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        return read(file, new FileInputStream(file));
+    }
+
+    @Override
+    public Schematic read(File file, byte[] data) throws IOException {
+        return read(file, new ByteArrayInputStream(data));
+    }
+
+    private Schematic read(File file, InputStream stream) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
             if (in.readInt() != MAGIC)
                 throw new SchematicParseException("Incorrect header");
             int headerTagSize = in.readInt();
@@ -25,89 +39,184 @@ public class AxiomSchematicFormat implements SchematicFormat {
             byte[] thumbnail = in.readNBytes(thumbnailLength);
             int blockDataLength = in.readInt();
             byte[] blockData = in.readNBytes(blockDataLength);
-            DataInputStream blockDataStream = new DataInputStream(
-                    new GZIPInputStream(new ByteArrayInputStream(blockData)));
-            CompoundTag blockDataTag = NbtUtil.read(blockDataStream);
-            blockDataStream.close();
-
-            ListTag blockRegions = blockDataTag.getList("BlockRegion");
-            int minX = Integer.MAX_VALUE;
-            int minY = Integer.MAX_VALUE;
-            int minZ = Integer.MAX_VALUE;
-            int maxX = Integer.MIN_VALUE;
-            int maxY = Integer.MIN_VALUE;
-            int maxZ = Integer.MIN_VALUE;
-            for (Tag tag : blockRegions) {
-                CompoundTag region = (CompoundTag) tag;
-                minX = Math.min(minX, region.getInt("X"));
-                minY = Math.min(minY, region.getInt("Y"));
-                minZ = Math.min(minZ, region.getInt("Z"));
-                maxX = Math.max(maxX, region.getInt("X"));
-                maxY = Math.max(maxY, region.getInt("Y"));
-                maxZ = Math.max(maxZ, region.getInt("Z"));
+            Bounds bounds = scanBlockData(blockData);
+            int[] size = new int[3];
+            for (int i = 0; i < 3; i++) {
+                long axisSize = ((long) bounds.max()[i] - bounds.min()[i] + 1) * 16;
+                if (axisSize > Integer.MAX_VALUE) throw new SchematicParseException("Block regions are too far apart");
+                size[i] = (int) axisSize;
             }
-            int[] size = { (maxX - minX + 1) * 16, (maxY - minY + 1) * 16, (maxZ - minZ + 1) * 16 };
-            int dataVersion = blockDataTag.contains("DataVersion", Tag.TAG_INT) ? blockDataTag.getInt("DataVersion")
-                    : -1;
-            Schematic.Builder builder = new Schematic.Builder(file, dataVersion, size).setThumbnail(thumbnail);
-            for (Tag tag : blockRegions) {
-                CompoundTag region = (CompoundTag) tag;
-                CompoundTag blockStatesTag = region.getCompound("BlockStates");
-                ListTag paletteTag = blockStatesTag.getList("palette");
-                String[] palette = new String[paletteTag.size()];
-                for (int i = 0; i < palette.length; i++)
-                    palette[i] = NbtUtil.convertToBlockString((CompoundTag) paletteTag.get(i));
-                long[] data = palette.length == 1 ? new long[256] : blockStatesTag.getLongArray("data");
-                int regionX = region.getInt("X") - minX;
-                int regionY = region.getInt("Y") - minY;
-                int regionZ = region.getInt("Z") - minZ;
-                int[] blockStateData = new int[4096];
-                int bitsPerValue = Math.max(4, Integer.SIZE - Integer.numberOfLeadingZeros(palette.length - 1));
-                int valuesPerLong = Long.SIZE / bitsPerValue;
-                int index = 0;
-                int mask = (1 << bitsPerValue) - 1;
-                for (long num : data) {
-                    for (int i = 0; i < valuesPerLong && index < 4096; i++) {
-                        blockStateData[index++] = (int) (num & mask);
-                        num >>>= bitsPerValue;
+            SectionedBlockStorage storage = new SectionedBlockStorage(size[0], size[1], size[2]);
+            Schematic.Builder builder = new Schematic.Builder(file, bounds.dataVersion(), storage)
+                    .setThumbnail(thumbnail);
+            // Regions are read a batch at a time on a second pass, so the block data is never fully decoded
+            try (NbtReader reader = openBlockData(blockData)) {
+                reader.beginCompound();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (reader.peek() != Tag.TAG_LIST) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    switch (name) {
+                        case "BlockRegion" -> {
+                            List<CompoundTag> batch = new ArrayList<>(DECODE_BATCH_SIZE);
+                            reader.beginList();
+                            while (reader.hasNext()) {
+                                batch.add(NbtUtil.getCompound(reader.nextTag()));
+                                if (batch.size() == DECODE_BATCH_SIZE) {
+                                    readRegions(batch, bounds.min(), builder, storage);
+                                    batch.clear();
+                                }
+                            }
+                            reader.endList();
+                            if (!batch.isEmpty()) readRegions(batch, bounds.min(), builder, storage);
+                        }
+                        case "BlockEntities" -> {
+                            reader.beginList();
+                            while (reader.hasNext()) {
+                                CompoundTag blockEntity = reader.nextLazyCompound();
+                                if (blockEntity.contains("X", Tag.TAG_INT))
+                                    builder.addBlockEntity(blockEntity.getInt("X"), blockEntity.getInt("Y"),
+                                            blockEntity.getInt("Z"), blockEntity);
+                                else
+                                    builder.addBlockEntity(blockEntity.getInt("x"), blockEntity.getInt("y"),
+                                            blockEntity.getInt("z"), blockEntity);
+                            }
+                            reader.endList();
+                        }
+                        default -> reader.skipValue();
                     }
                 }
+            }
+            fillMissingRegions(builder, storage);
+            return builder.trim().build();
+        }
+    }
+
+    private static NbtReader openBlockData(byte[] blockData) throws IOException {
+        return new NbtReader(new DataInputStream(new BufferedInputStream(ParallelGzipInputStream.open(blockData))));
+    }
 
-                int i = 0;
-                for (int y = 0; y < 16; y++) {
-                    for (int z = 0; z < 16; z++) {
-                        for (int x = 0; x < 16; x++) {
-                            builder.setBlockAt(regionX * 16 + x, regionY * 16 + y, regionZ * 16 + z,
-                                    palette[blockStateData[i++]]);
+    /**
+     * Finds the range of region coordinates and the data version without decoding any regions.
+     */
+    private static Bounds scanBlockData(byte[] blockData) throws IOException {
+        int[] min = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+        int[] max = {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        int dataVersion = -1;
+        boolean found = false;
+        try (NbtReader reader = openBlockData(blockData)) {
+            reader.beginCompound();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                byte type = reader.peek();
+                if (name.equals("DataVersion") && type == Tag.TAG_INT) {
+                    dataVersion = reader.nextInt();
+                } else if (name.equals("BlockRegion") && type == Tag.TAG_LIST) {
+                    reader.beginList();
+                    while (reader.hasNext()) {
+                        int[] position = new int[3];
+                        reader.beginCompound();
+                        while (reader.hasNext()) {
+                            int axis = switch (reader.nextName()) {
+                                case "X" -> 0;
+                                case "Y" -> 1;
+                                case "Z" -> 2;
+                                default -> -1;
+                            };
+                            if (axis == -1) reader.skipValue();
+                            else position[axis] = NbtUtil.getInt(reader.nextTag());
+                        }
+                        reader.endCompound();
+                        for (int i = 0; i < 3; i++) {
+                            min[i] = Math.min(min[i], position[i]);
+                            max[i] = Math.max(max[i], position[i]);
                         }
+                        found = true;
                     }
+                    reader.endList();
+                } else {
+                    reader.skipValue();
                 }
             }
-            if (blockDataTag.contains("BlockEntities", Tag.TAG_LIST)) {
-                ListTag blockEntities = blockDataTag.getList("BlockEntities");
-                for (Tag tag : blockEntities) {
-                    CompoundTag blockEntity = (CompoundTag) tag;
-                    if (blockEntity.contains("X", Tag.TAG_INT))
-                        builder.addBlockEntity(blockEntity.getInt("X"), blockEntity.getInt("Y"),
-                                blockEntity.getInt("Z"), blockEntity);
-                    else
-                        builder.addBlockEntity(blockEntity.getInt("x"), blockEntity.getInt("y"),
-                                blockEntity.getInt("z"), blockEntity);
+        }
+        if (!found) throw new SchematicParseException("Blueprint doesn't contain any block regions");
+        return new Bounds(min, max, dataVersion);
+    }
 
+    /**
+     * Reads a batch of regions. Palettes and block data are decoded in parallel, palette ids are then assigned in
+     * region order so that the resulting palette doesn't depend on scheduling, and finally each region fills its own
+     * section in parallel. If a region appears more than once, the last occurrence wins as it would when reading
+     * sequentially.
+     */
+    private void readRegions(List<CompoundTag> blockRegions, int[] min, Schematic.Builder builder,
+            SectionedBlockStorage storage) {
+        DecodedRegion[] regions = new DecodedRegion[blockRegions.size()];
+        RegionExecutor.forEach(regions.length, i -> regions[i] = decodeRegion(blockRegions.get(i), min));
+        Map<Integer, Integer> lastBySection = new HashMap<>();
+        for (int i = 0; i < regions.length; i++) {
+            DecodedRegion region = regions[i];
+            for (int j = 0; j < region.palette().length; j++) region.ids()[j] = builder.getPaletteId(region.palette()[j]);
+            int section = (region.y() * storage.getZSections() + region.z()) * storage.getXSections() + region.x();
+            lastBySection.put(section, i);
+        }
+        int[] placed = lastBySection.values().stream().mapToInt(Integer::intValue).sorted().toArray();
+        RegionExecutor.forEach(placed.length, i -> placeRegion(regions[placed[i]], builder));
+    }
+
+    /**
+     * Fills the sections of regions that were left out of the file, because they were empty, with structure void.
+     */
+    private static void fillMissingRegions(Schematic.Builder builder, SectionedBlockStorage storage) {
+        int voidId = -1;
+        for (int sectionY = 0; sectionY < storage.getYSections(); sectionY++)
+            for (int sectionZ = 0; sectionZ < storage.getZSections(); sectionZ++)
+                for (int sectionX = 0; sectionX < storage.getXSections(); sectionX++) {
+                    if (!storage.isSectionEmpty(sectionX, sectionY, sectionZ)) continue;
+                    if (voidId == -1) voidId = builder.getPaletteId(STRUCTURE_VOID);
+                    storage.fillSection(sectionX, sectionY, sectionZ, voidId);
+                }
+    }
+
+    private static DecodedRegion decodeRegion(CompoundTag region, int[] min) {
+        CompoundTag blockStatesTag = region.getCompound("BlockStates");
+        ListTag paletteTag = blockStatesTag.getList("palette");
+        String[] palette = new String[paletteTag.size()];
+        for (int i = 0; i < palette.length; i++)
+            palette[i] = BlockState.fromTag((CompoundTag) paletteTag.get(i)).toString();
+        long[] data = palette.length == 1 ? null : blockStatesTag.getLongArray("data");
+        int[] blockStateData = new int[4096];
+        int bitsPerValue = Math.max(4, Integer.SIZE - Integer.numberOfLeadingZeros(palette.length - 1));
+        new PackedIntArray(bitsPerValue, 4096, false, data).getAll(blockStateData);
+        return new DecodedRegion(region.getInt("X") - min[0], region.getInt("Y") - min[1], region.getInt("Z") - min[2],
+                palette, new int[palette.length], blockStateData);
+    }
+
+    private static void placeRegion(DecodedRegion region, Schematic.Builder builder) {
+        int[] blockStateData = region.blockStateData();
+        if (PackedInts.translate(blockStateData, 0, blockStateData.length, region.ids()) != -1)
+            throw new SchematicParseException("Invalid palette index in block region");
+        int i = 0;
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    builder.setBlockIdAt(region.x() * 16 + x, region.y() * 16 + y, region.z() * 16 + z,
+                            blockStateData[i++]);
                 }
             }
-            return builder.trim().build();
         }
     }
 
     @Override
-    public void write(File file, Schematic schematic) throws IOException {
-        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+    public void write(OutputStream stream, Schematic schematic) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
         out.writeInt(MAGIC);
         writeHeader(out, schematic);
         writeThumbnail(out, schematic);
         writeBlockData(out, schematic);
-        out.close();
+        out.flush();
     }
 
     private void writeHeader(DataOutputStream out, Schematic schematic) throws IOException {
@@ -141,104 +250,253 @@ public class AxiomSchematicFormat implements SchematicFormat {
         }
     }
 
+    /**
+     * Streams the regions into the compressed block data a batch at a time. The compressed length comes before the
+     * data, so the data is collected first, in a temporary file once it gets large.
+     */
     private void writeBlockData(DataOutputStream out, Schematic schematic) throws IOException {
-        CompoundTag blockData = new CompoundTag();
-        ListTag blockRegions = new ListTag(Tag.TAG_COMPOUND);
         int[] size = schematic.getSize();
         int[] regionSize = new int[] {
                 (int) Math.ceil(size[0] / 16.0),
                 (int) Math.ceil(size[1] / 16.0),
                 (int) Math.ceil(size[2] / 16.0),
         };
-        for (int regionX = 0; regionX < regionSize[0]; regionX++) {
-            for (int regionY = 0; regionY < regionSize[1]; regionY++) {
-                for (int regionZ = 0; regionZ < regionSize[2]; regionZ++) {
-                    CompoundTag region = new CompoundTag();
-                    region.put("X", new IntTag(regionX));
-                    region.put("Y", new IntTag(regionY));
-                    region.put("Z", new IntTag(regionZ));
-                    CompoundTag blockStates = new CompoundTag();
-                    List<String> palette = collectPalette(schematic, regionX, regionY, regionZ);
-
-                    int[] blockStateData = new int[4096];
-                    int index = 0;
-                    for (int dy = 0; dy < 16; dy++) {
-                        for (int dz = 0; dz < 16; dz++) {
-                            for (int dx = 0; dx < 16; dx++) {
-                                String block;
-                                try {
-                                    block = schematic.getBlock(regionX * 16 + dx, regionY * 16 + dy, regionZ * 16 + dz);
-                                    if (block == null)
-                                        block = "minecraft:structure_void";
-                                    if (block.startsWith("minecraft:oak_log")) {
-                                        new Object();
-                                    }
-                                } catch (IndexOutOfBoundsException e) {
-                                    if (!palette.contains("minecraft:structure_void"))
-                                        palette.add("minecraft:structure_void");
-                                    block = "minecraft:structure_void";
-                                }
-                                blockStateData[index++] = palette.indexOf(block);
-                            }
-                        }
-                    }
-                    ListTag paletteTag = new ListTag(Tag.TAG_COMPOUND);
-                    palette.stream().map(NbtUtil::convertFromBlockString).forEach(paletteTag::add);
-                    blockStates.put("palette", paletteTag);
-                    int bitsPerValue = Math.max(4, Integer.SIZE - Integer.numberOfLeadingZeros(palette.size() - 1));
-                    int valuesPerLong = Long.SIZE / bitsPerValue;
-                    long[] data = new long[(int) Math.ceil(4096 / (double) valuesPerLong)];
-                    int blockIndex = 0;
-                    for (int i = 0; i < data.length; i++) {
-                        long value = 0;
-                        for (int j = 0; j < valuesPerLong && blockIndex < 4096; j++) {
-                            // Pack each blockStateData value into the long at the correct bit offset.
-                            value |= ((long) blockStateData[blockIndex++]) << (j * bitsPerValue);
-                        }
-                        data[i] = value;
-                    }
-                    blockStates.put("data", new LongArrayTag(data));
-                    region.put("BlockStates", blockStates);
-                    blockRegions.add(region);
+        long totalRegions = (long) regionSize[0] * regionSize[1] * regionSize[2];
+        if (totalRegions > Integer.MAX_VALUE)
+            throw new ConversionException("Schematic is too large for an Axiom blueprint");
+        int regionCount = (int) totalRegions;
+        // Regions with nothing but void are left out, except for the two corners which keep the bounding box intact.
+        // They are found up front because the list length is written before the regions.
+        int voidId = schematic.getPalette().indexOf(STRUCTURE_VOID);
+        boolean[] kept = new boolean[regionCount];
+        RegionExecutor.forEach(regionCount, i -> kept[i] = i == 0 || i == regionCount - 1
+                || !isVoid(schematic, voidId, regionX(i, regionSize), regionY(i, regionSize), regionZ(i, regionSize)));
+        int[] keptRegions = new int[regionCount];
+        int keptCount = 0;
+        for (int i = 0; i < regionCount; i++) if (kept[i]) keptRegions[keptCount++] = i;
+
+        try (SpoolingOutputStream spool = new SpoolingOutputStream()) {
+            ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(spool);
+            NbtWriter writer = new NbtWriter(new DataOutputStream(gzip));
+            writer.beginCompound();
+            writer.name("BlockRegion");
+            writer.beginList(Tag.TAG_COMPOUND, keptCount);
+            // Regions are encoded in parallel, then written in a fixed order. Encoders are reused through a pool local
+            // to this call rather than thread locals, which would keep the schematic reachable from the shared workers.
+            Queue<RegionEncoder> encoders = new ConcurrentLinkedQueue<>();
+            CompoundTag[] encoded = new CompoundTag[Math.min(keptCount, DECODE_BATCH_SIZE)];
+            for (int start = 0; start < keptCount; start += encoded.length) {
+                int first = start;
+                int count = Math.min(encoded.length, keptCount - start);
+                RegionExecutor.forEach(count, i -> {
+                    RegionEncoder encoder = encoders.poll();
+                    if (encoder == null) encoder = new RegionEncoder(schematic);
+                    int region = keptRegions[first + i];
+                    encoded[i] = encoder.encode(regionX(region, regionSize), regionY(region, regionSize),
+                            regionZ(region, regionSize));
+                    encoders.offer(encoder);
+                });
+                for (int i = 0; i < count; i++) writer.writeTag(encoded[i]);
+            }
+            writer.endList();
+            writer.name("BlockEntities");
+            writer.beginList(Tag.TAG_COMPOUND, schematic.getBlockEntities().size());
+            for (Map.Entry<Pos, CompoundTag> entry : schematic.getBlockEntities().entrySet()) {
+                Pos pos = entry.getKey();
+                writer.beginCompound();
+                writer.writeEntries(entry.getValue(), "x", "y", "z");
+                writer.name("x");
+                writer.writeInt(pos.x());
+                writer.name("y");
+                writer.writeInt(pos.y());
+                writer.name("z");
+                writer.writeInt(pos.z());
+                writer.endCompound();
+            }
+            writer.endList();
+            writer.endCompound();
+            writer.flush();
+            gzip.finish();
+            if (spool.size() > Integer.MAX_VALUE)
+                throw new ConversionException("Compressed block data is too large for an Axiom blueprint: "
+                        + spool.size() + " bytes");
+            out.writeInt((int) spool.size());
+            spool.writeTo(out);
+        }
+    }
+
+    private static int regionX(int index, int[] regionSize) {
+        return index / (regionSize[1] * regionSize[2]);
+    }
+
+    private static int regionY(int index, int[] regionSize) {
+        return index / regionSize[2] % regionSize[1];
+    }
+
+    private static int regionZ(int index, int[] regionSize) {
+        return index % regionSize[2];
+    }
+
+    /**
+     * Returns whether a region would be encoded as nothing but void, meaning all of its blocks are empty or void.
+     */
+    private static boolean isVoid(Schematic schematic, int voidId, int regionX, int regionY, int regionZ) {
+        int[] size = schematic.getSize();
+        int endX = Math.min(size[0], regionX * 16 + 16);
+        int endY = Math.min(size[1], regionY * 16 + 16);
+        int endZ = Math.min(size[2], regionZ * 16 + 16);
+        for (int y = regionY * 16; y < endY; y++) {
+            for (int z = regionZ * 16; z < endZ; z++) {
+                for (int x = regionX * 16; x < endX; x++) {
+                    int id = schematic.getPaletteBlock(x, y, z);
+                    if (id != -1 && id != voidId) return false;
                 }
             }
         }
-        blockData.put("BlockRegion", blockRegions);
-        ListTag blockEntities = new ListTag(Tag.TAG_COMPOUND);
-        schematic.getBlockEntities().forEach((pos, blockEntity) -> {
-            blockEntity.put("x", new IntTag(pos.x()));
-            blockEntity.put("y", new IntTag(pos.y()));
-            blockEntity.put("z", new IntTag(pos.z()));
-            blockEntities.add(blockEntity);
-        });
-        blockData.put("BlockEntities", blockEntities);
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        GZIPOutputStream gzip = new GZIPOutputStream(stream);
-        NbtUtil.write(blockData, new DataOutputStream(gzip));
-        gzip.finish();
-        out.writeInt(stream.size());
-        out.write(stream.toByteArray());
+        return true;
+    }
+
+    /**
+     * Collects output in memory, moving it to a temporary file once it grows past
+     * {@link SpooledArray#SPOOL_THRESHOLD}, so it can be measured before being copied on.
+     */
+    private static class SpoolingOutputStream extends OutputStream {
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private Path file;
+        private OutputStream fileOut;
+        private long size;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fileOut == null && memory.size() + (long) len > SpooledArray.SPOOL_THRESHOLD) {
+                file = Files.createTempFile("schemconvert", ".bp");
+                fileOut = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+                memory.writeTo(fileOut);
+                memory = null;
+            }
+            if (fileOut != null) fileOut.write(b, off, len);
+            else memory.write(b, off, len);
+            size += len;
+        }
+
+        private long size() {
+            return size;
+        }
+
+        private void writeTo(OutputStream out) throws IOException {
+            if (fileOut == null) {
+                memory.writeTo(out);
+                return;
+            }
+            fileOut.flush();
+            Files.copy(file, out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut == null) return;
+            fileOut.close();
+            Files.deleteIfExists(file);
+        }
     }
 
-    private List<String> collectPalette(Schematic schematic, int regionX, int regionY, int regionZ) {
-        Set<String> palette = new HashSet<>();
-        for (int dx = 0; dx < 16; dx++) {
-            for (int dy = 0; dy < 16; dy++) {
-                for (int dz = 0; dz < 16; dz++) {
-                    try {
-                        String block = schematic.getBlock(regionX * 16 + dx, regionY * 16 + dy, regionZ * 16 + dz);
-                        palette.add(block == null ? "minecraft:structure_void" : block);
-                    } catch (IndexOutOfBoundsException e) {
-                        palette.add("minecraft:structure_void");
+    /**
+     * Encodes 16x16x16 regions in a single pass over their blocks. Schematic palette ids are mapped to region-local
+     * indices through a small open-addressing table, which is cleared between regions by bumping a generation counter
+     * instead of refilling it. Empty blocks and the parts of edge regions outside the schematic become structure void.
+     */
+    private static class RegionEncoder {
+        private static final int VOID_KEY = -1;
+        private static final int TABLE_SIZE = 1 << 13;
+
+        private final Schematic schematic;
+        private final int[] size;
+        private final int voidId;
+        private final int[] keys = new int[TABLE_SIZE];
+        private final int[] localIndices = new int[TABLE_SIZE];
+        private final int[] generations = new int[TABLE_SIZE];
+        private final int[] localPalette = new int[4096];
+        private final int[] blockStateData = new int[4096];
+        private int generation;
+        private int localSize;
+
+        private RegionEncoder(Schematic schematic) {
+            this.schematic = schematic;
+            this.size = schematic.getSize();
+            this.voidId = schematic.getPalette().indexOf(STRUCTURE_VOID);
+        }
+
+        private int localIndex(int key) {
+            int slot = (key * 0x9E3779B9) >>> (Integer.SIZE - 13);
+            while (generations[slot] == generation) {
+                if (keys[slot] == key) return localIndices[slot];
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            generations[slot] = generation;
+            keys[slot] = key;
+            localPalette[localSize] = key;
+            return localIndices[slot] = localSize++;
+        }
+
+        private CompoundTag encode(int regionX, int regionY, int regionZ) {
+            generation++;
+            localSize = 0;
+            int baseX = regionX * 16;
+            int baseY = regionY * 16;
+            int baseZ = regionZ * 16;
+            int endX = Math.min(16, size[0] - baseX);
+            int endY = Math.min(16, size[1] - baseY);
+            int endZ = Math.min(16, size[2] - baseZ);
+            if (endX < 16 || endY < 16 || endZ < 16) Arrays.fill(blockStateData, localIndex(VOID_KEY));
+            for (int dy = 0; dy < endY; dy++) {
+                for (int dz = 0; dz < endZ; dz++) {
+                    int index = (dy * 16 + dz) * 16;
+                    for (int dx = 0; dx < endX; dx++) {
+                        int id = schematic.getPaletteBlock(baseX + dx, baseY + dy, baseZ + dz);
+                        blockStateData[index + dx] = localIndex(id == voidId ? VOID_KEY : id);
                     }
                 }
             }
+
+            List<String> palette = schematic.getPalette();
+            ListTag paletteTag = new ListTag(Tag.TAG_COMPOUND);
+            for (int i = 0; i < localSize; i++) {
+                int key = localPalette[i];
+                paletteTag.add(BlockState.parse(key == VOID_KEY ? STRUCTURE_VOID : palette.get(key)).toTag());
+            }
+            int bitsPerValue = Math.max(4, Integer.SIZE - Integer.numberOfLeadingZeros(localSize - 1));
+            PackedIntArray data = new PackedIntArray(bitsPerValue, 4096, false);
+            data.setAll(blockStateData);
+            CompoundTag blockStates = new CompoundTag();
+            blockStates.put("palette", paletteTag);
+            blockStates.put("data", new LongArrayTag(data.getData()));
+            CompoundTag region = new CompoundTag();
+            region.put("X", new IntTag(regionX));
+            region.put("Y", new IntTag(regionY));
+            region.put("Z", new IntTag(regionZ));
+            region.put("BlockStates", blockStates);
+            return region;
         }
-        return new ArrayList<>(palette);
+    }
+
+    @Override
+    public String describeSource(File source) {
+        return Util.stripExtension(source.getName());
     }
 
     @Override
     public String getExtension() {
         return ".bp";
     }
+
+    private record Bounds(int[] min, int[] max, int dataVersion) {
+    }
+
+    private record DecodedRegion(int x, int y, int z, String[] palette, int[] ids, int[] blockStateData) {
+    }
 }
@@ -1,126 +1,215 @@
 package pitheguy.schemconvert.converter.formats;
 
-import pitheguy.schemconvert.converter.ConversionException;
-import pitheguy.schemconvert.converter.LegacyMappings;
-import pitheguy.schemconvert.converter.Schematic;
-import pitheguy.schemconvert.nbt.NbtUtil;
+import pitheguy.schemconvert.converter.*;
+import pitheguy.schemconvert.nbt.*;
 import pitheguy.schemconvert.nbt.tags.*;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
 
 public class ClassicSchematicFormat implements SchematicFormat {
 
     @Override
     public Schematic read(File file) throws IOException {
-        CompoundTag tag = NbtUtil.read(file);
-
-        if (!tag.contains("Blocks", Tag.TAG_BYTE_ARRAY))
-            throw new ConversionException("Invalid schematic file: missing Blocks");
-
-        short width = tag.getShort("Width");
-        short height = tag.getShort("Height");
-        short length = tag.getShort("Length");
-
-        byte[] blocks = tag.getByteArray("Blocks");
-        byte[] data = tag.getByteArray("Data");
-
-        if (blocks.length != width * height * length)
-            throw new ConversionException("Block data size mismatch");
+        try (NbtReader reader = NbtReader.open(file)) {
+            return read(file, reader);
+        }
+    }
 
-        Schematic.Builder builder = new Schematic.Builder(file, -1, width, height, length);
+    @Override
+    public Schematic read(File file, byte[] data) throws IOException {
+        try (NbtReader reader = NbtReader.open(data)) {
+            return read(file, reader);
+        }
+    }
 
-        for (int y = 0; y < height; y++) {
-            for (int z = 0; z < length; z++) {
-                for (int x = 0; x < width; x++) {
-                    int index = (y * length + z) * width + x;
-                    int blockId = blocks[index] & 0xFF;
-                    int blockData = data[index] & 0xFF;
+    private Schematic read(File file, NbtReader reader) throws IOException {
+        short width = 0;
+        short height = 0;
+        short length = 0;
+        SpooledArray blocks = null;
+        SpooledArray data = null;
+        List<CompoundTag> tileEntities = new ArrayList<>();
+        List<CompoundTag> entities = new ArrayList<>();
+        try {
+            reader.beginCompound();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                byte type = reader.peek();
+                switch (name) {
+                    case "Width" -> width = reader.nextShort();
+                    case "Height" -> height = reader.nextShort();
+                    case "Length" -> length = reader.nextShort();
+                    case "Blocks" -> {
+                        if (type != Tag.TAG_BYTE_ARRAY) throw new ConversionException("Invalid schematic file: missing Blocks");
+                        if (blocks != null) blocks.close();
+                        blocks = SpooledArray.read(reader);
+                    }
+                    case "Data" -> {
+                        if (data != null) data.close();
+                        data = SpooledArray.read(reader);
+                    }
+                    case "TileEntities" -> readCompounds(reader, type, tileEntities);
+                    case "Entities" -> readCompounds(reader, type, entities);
+                    default -> reader.skipValue();
+                }
+            }
 
-                    String blockString = LegacyMappings.getModernBlock(blockId, blockData);
-                    builder.setBlockAt(x, y, z, blockString);
+            if (blocks == null)
+                throw new ConversionException("Invalid schematic file: missing Blocks");
+            if (width < 0 || height < 0 || length < 0 || blocks.length() != width * height * length)
+                throw new ConversionException("Block data size mismatch");
+            if (data == null || data.length() != blocks.length())
+                throw new ConversionException("Block data size mismatch");
+
+            Schematic.Builder builder = new Schematic.Builder(file, -1, width, height, length);
+
+            // Palette ids are resolved the first time each legacy state is seen. Blocks and data are read a row at a
+            // time, so the arrays are never fully on the heap.
+            String[] modernBlocks = LegacyMappings.getModernBlockTable();
+            int[] paletteIds = new int[LegacyMappings.LEGACY_STATES];
+            Arrays.fill(paletteIds, -1);
+            byte[] blockRow = new byte[width];
+            byte[] dataRow = new byte[width];
+            long index = 0;
+            for (int y = 0; y < height; y++) {
+                for (int z = 0; z < length; z++, index += width) {
+                    blocks.getBytes(index, blockRow, 0, width);
+                    data.getBytes(index, dataRow, 0, width);
+                    for (int x = 0; x < width; x++) {
+                        int packed = (blockRow[x] & 0xFF) << 4 | dataRow[x] & 0xF;
+                        int id = paletteIds[packed];
+                        if (id == -1)
+                            id = paletteIds[packed] = builder.getPaletteId(modernBlocks[packed]);
+                        builder.setBlockIdAt(x, y, z, id);
+                    }
                 }
             }
-        }
 
-        if (tag.contains("TileEntities", Tag.TAG_LIST)) {
-            ListTag tileEntities = tag.getList("TileEntities");
-            for (Tag t : tileEntities) {
-                CompoundTag te = (CompoundTag) t;
+            for (CompoundTag te : tileEntities)
                 builder.addBlockEntity(te.getInt("x"), te.getInt("y"), te.getInt("z"), te);
-            }
-        }
 
-        if (tag.contains("Entities", Tag.TAG_LIST)) {
-            ListTag entities = tag.getList("Entities");
-            for (Tag t : entities) {
-                CompoundTag entity = (CompoundTag) t;
+            for (CompoundTag entity : entities) {
                 ListTag pos = entity.getList("Pos");
                 double x = ((DoubleTag) pos.get(0)).value();
                 double y = ((DoubleTag) pos.get(1)).value();
                 double z = ((DoubleTag) pos.get(2)).value();
                 builder.addEntity(entity.getString("id"), x, y, z, entity);
             }
+
+            return builder.build();
+        } finally {
+            if (blocks != null) blocks.close();
+            if (data != null) data.close();
         }
+    }
 
-        return builder.build();
+    private static void readCompounds(NbtReader reader, byte type, List<CompoundTag> target) throws IOException {
+        if (type != Tag.TAG_LIST) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginList();
+        while (reader.hasNext()) target.add(reader.nextLazyCompound());
+        reader.endList();
     }
 
+    /**
+     * Streams the schematic, writing the Blocks and Data arrays a row at a time.
+     */
     @Override
-    public void write(File file, Schematic schematic) throws IOException {
+    public void write(OutputStream out, Schematic schematic) throws IOException {
         int[] size = schematic.getSize();
+        if (size[0] > Short.MAX_VALUE || size[1] > Short.MAX_VALUE || size[2] > Short.MAX_VALUE)
+            throw new ConversionException("The classic schematic format only supports schematics of up to "
+                    + Short.MAX_VALUE + " blocks along each axis");
+        long volume = (long) size[0] * size[1] * size[2];
+        if (volume > Integer.MAX_VALUE)
+            throw new ConversionException("The classic schematic format only supports schematics of up to "
+                    + Integer.MAX_VALUE + " blocks, but this one has " + volume);
         short width = (short) size[0];
         short height = (short) size[1];
         short length = (short) size[2];
 
-        byte[] blocks = new byte[width * height * length];
-        byte[] data = new byte[width * height * length];
-
-        for (int y = 0; y < height; y++) {
-            for (int z = 0; z < length; z++) {
-                for (int x = 0; x < width; x++) {
-                    String block = schematic.getBlock(x, y, z);
-                    int packed = LegacyMappings.getLegacyId(block);
-                    int index = (y * length + z) * width + x;
-                    blocks[index] = (byte) LegacyMappings.unpackId(packed);
-                    data[index] = (byte) LegacyMappings.unpackData(packed);
-                }
-            }
+        // Legacy ids are resolved once per palette entry; empty positions are written as air
+        List<String> palette = schematic.getPalette();
+        int[] legacyIds = new int[palette.size()];
+        for (int i = 0; i < legacyIds.length; i++)
+            legacyIds[i] = LegacyMappings.getLegacyId(palette.get(i));
+
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out);
+        NbtWriter writer = new NbtWriter(new DataOutputStream(gzip));
+        writer.beginCompound();
+        writer.name("Width");
+        writer.writeShort(width);
+        writer.name("Height");
+        writer.writeShort(height);
+        writer.name("Length");
+        writer.writeShort(length);
+        writer.name("Materials");
+        writer.writeString("Alpha");
+        writer.name("Blocks");
+        writeLegacyArray(writer, schematic, legacyIds, false);
+        writer.name("Data");
+        writeLegacyArray(writer, schematic, legacyIds, true);
+
+        writer.name("TileEntities");
+        writer.beginList(Tag.TAG_COMPOUND, schematic.getBlockEntities().size());
+        for (Map.Entry<Pos, CompoundTag> entry : schematic.getBlockEntities().entrySet()) {
+            Pos pos = entry.getKey();
+            writer.beginCompound();
+            writer.writeEntries(entry.getValue(), "x", "y", "z");
+            writer.name("x");
+            writer.writeInt(pos.x());
+            writer.name("y");
+            writer.writeInt(pos.y());
+            writer.name("z");
+            writer.writeInt(pos.z());
+            writer.endCompound();
         }
-
-        CompoundTag tag = new CompoundTag();
-        tag.put("Width", new ShortTag(width));
-        tag.put("Height", new ShortTag(height));
-        tag.put("Length", new ShortTag(length));
-        tag.put("Materials", new StringTag("Alpha"));
-        tag.put("Blocks", new ByteArrayTag(blocks));
-        tag.put("Data", new ByteArrayTag(data));
-
-        ListTag tileEntities = new ListTag(Tag.TAG_COMPOUND);
-        schematic.getBlockEntities().forEach((pos, te) -> {
-            CompoundTag copy = te;
-            copy.put("x", new IntTag(pos.x()));
-            copy.put("y", new IntTag(pos.y()));
-            copy.put("z", new IntTag(pos.z()));
-            tileEntities.add(copy);
-        });
-        tag.put("TileEntities", tileEntities);
-
-        ListTag entities = new ListTag(Tag.TAG_COMPOUND);
-        for (var entity : schematic.getEntities()) {
-            CompoundTag eTag = entity.nbt();
-            ListTag pos = new ListTag(Tag.TAG_DOUBLE);
-            pos.add(new DoubleTag(entity.x()));
-            pos.add(new DoubleTag(entity.y()));
-            pos.add(new DoubleTag(entity.z()));
-            eTag.put("Pos", pos);
-            entities.add(eTag);
+        writer.endList();
+
+        writer.name("Entities");
+        writer.beginList(Tag.TAG_COMPOUND, schematic.getEntities().size());
+        for (Entity entity : schematic.getEntities()) {
+            writer.beginCompound();
+            writer.writeEntries(entity.nbt(), "Pos");
+            writer.name("Pos");
+            writer.beginList(Tag.TAG_DOUBLE, 3);
+            writer.writeDouble(entity.x());
+            writer.writeDouble(entity.y());
+            writer.writeDouble(entity.z());
+            writer.endList();
+            writer.endCompound();
         }
-        tag.put("Entities", entities);
+        writer.endList();
+        writer.endCompound();
+        writer.flush();
+        gzip.finish();
+    }
 
-        NbtUtil.write(tag, file);
+    private static void writeLegacyArray(NbtWriter writer, Schematic schematic, int[] legacyIds, boolean data)
+            throws IOException {
+        int[] size = schematic.getSize();
+        byte[] row = new byte[size[0]];
+        writer.beginArray(Tag.TAG_BYTE_ARRAY, size[0] * size[1] * size[2]);
+        for (int y = 0; y < size[1]; y++) {
+            for (int z = 0; z < size[2]; z++) {
+                for (int x = 0; x < size[0]; x++) {
+                    int state = schematic.getPaletteBlock(x, y, z);
+                    int packed = state == -1 ? 0 : legacyIds[state];
+                    row[x] = (byte) (data ? LegacyMappings.unpackData(packed) : LegacyMappings.unpackId(packed));
+                }
+                writer.writeBytes(row, 0, row.length);
+            }
+        }
+        writer.endArray();
     }
 
+
     @Override
     public String getExtension() {
         return ".schematic";
@@ -1,195 +1,482 @@
 package pitheguy.schemconvert.converter.formats;
 
 import pitheguy.schemconvert.converter.*;
+import pitheguy.schemconvert.nbt.NbtReader;
 import pitheguy.schemconvert.nbt.NbtUtil;
+import pitheguy.schemconvert.nbt.NbtWriter;
+import pitheguy.schemconvert.nbt.ParallelGzipOutputStream;
+import pitheguy.schemconvert.nbt.SpooledArray;
 import pitheguy.schemconvert.nbt.tags.*;
+import pitheguy.schemconvert.util.PackedIntArray;
+import pitheguy.schemconvert.util.PackedInts;
 import pitheguy.schemconvert.util.Util;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 
 public class LitematicSchematicFormat implements SchematicFormat {
+    // Regions are decoded in parallel batches of up to this many blocks; larger regions are decoded a chunk at a time
+    private static final int DECODE_BATCH_VOLUME = 1 << 22;
+    // Blocks unpacked or packed at once in large regions. A multiple of 64, so every chunk starts on a word boundary
+    private static final int CHUNK_VOLUME = 1 << 20;
+
     @Override
     public Schematic read(File file) throws IOException {
-        CompoundTag tag = NbtUtil.read(file);
-        CompoundTag regions = tag.getCompound("Regions");
-        if (regions.keySet().size() > 1) throw new ConversionException("Multi-region litematic files are not supported");
-        CompoundTag region = regions.getCompound(regions.keySet().iterator().next());
-        ListTag paletteTag = region.getList("BlockStatePalette");
-        CompoundTag sizeTag = region.getCompound("Size");
-        int[] size = new int[] {Math.abs(sizeTag.getInt("x")), Math.abs(sizeTag.getInt("y")), Math.abs(sizeTag.getInt("z"))};
-        CompoundTag regionPosTag = region.getCompound("Position");
-        int regionX = regionPosTag.getInt("x");
-        int regionY = regionPosTag.getInt("y");
-        int regionZ = regionPosTag.getInt("z");
-        String[] palette = new String[paletteTag.size()];
-        for (int i = 0; i < paletteTag.size(); i++) palette[i] = NbtUtil.convertToBlockString((CompoundTag) paletteTag.get(i));
-        Schematic.Builder builder = new Schematic.Builder(file, tag.getInt("MinecraftDataVersion"), size);
-        int[] blockStates = unpackBlockStates(region.getLongArray("BlockStates"), size, palette);
-        boolean zeroIndexed = Arrays.stream(blockStates).anyMatch(state -> state == 0);
-        int index = 0;
-        for (int y = 0; y < size[1]; y++)
-            for (int z = 0; z < size[2]; z++)
-                for (int x = 0; x < size[0]; x++)
-                    builder.setBlockAt(x, y, z, palette[zeroIndexed ? blockStates[index++] : blockStates[index++] - 1]);
-        ListTag tileEntitiesTag = region.getList("TileEntities");
-        for (Tag value : tileEntitiesTag) {
-            CompoundTag entityTag = (CompoundTag) value;
-            builder.addBlockEntity(entityTag.getInt("x"), entityTag.getInt("y"), entityTag.getInt("z"), entityTag);
-            entityTag.remove("x");
-            entityTag.remove("y");
-            entityTag.remove("z");
-        }
-        ListTag entitiesTag = region.getList("Entities");
-        for (Tag value : entitiesTag) {
-            CompoundTag entityTag = (CompoundTag) value;
-            ListTag posTag = entityTag.getList("Pos");
-            double[] pos = new double[3];
-            for (int i = 0; i < 3; i++) pos[i] = ((DoubleTag) posTag.get(i)).value();
-            builder.addEntity(entityTag.getString("id"), pos[0] + regionX, pos[1] + regionY, pos[2] + regionZ, entityTag);
+        try (NbtReader reader = NbtReader.open(file)) {
+            return read(file, reader);
+        }
+    }
+
+    @Override
+    public Schematic read(File file, byte[] data) throws IOException {
+        try (NbtReader reader = NbtReader.open(data)) {
+            return read(file, reader);
+        }
+    }
+
+    private Schematic read(File file, NbtReader reader) throws IOException {
+        int dataVersion = -1;
+        List<Region> regions = new ArrayList<>();
+        try {
+            reader.beginCompound();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "MinecraftDataVersion" -> dataVersion = reader.nextInt();
+                    case "Regions" -> {
+                        reader.beginCompound();
+                        while (reader.hasNext()) {
+                            reader.nextName();
+                            regions.add(readRegion(reader));
+                        }
+                        reader.endCompound();
+                    }
+                    default -> reader.skipValue();
+                }
+            }
+            if (regions.isEmpty()) throw new ConversionException("Litematic file doesn't contain any regions");
+            return buildSchematic(file, dataVersion, regions);
+        } finally {
+            for (Region region : regions) region.blockStates().close();
+        }
+    }
+
+    private Region readRegion(NbtReader reader) throws IOException {
+        String[] palette = null;
+        CompoundTag sizeTag = null;
+        CompoundTag positionTag = null;
+        SpooledArray blockStates = null;
+        List<CompoundTag> tileEntities = new ArrayList<>();
+        List<CompoundTag> entities = new ArrayList<>();
+        try {
+            reader.beginCompound();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "BlockStatePalette" -> {
+                        palette = new String[reader.beginList()];
+                        for (int i = 0; i < palette.length; i++)
+                            palette[i] = BlockState.fromTag(NbtUtil.getCompound(reader.nextTag())).toString();
+                        reader.endList();
+                    }
+                    case "Size" -> sizeTag = NbtUtil.getCompound(reader.nextTag());
+                    case "Position" -> positionTag = NbtUtil.getCompound(reader.nextTag());
+                    case "BlockStates" -> {
+                        if (blockStates != null) blockStates.close();
+                        blockStates = SpooledArray.read(reader);
+                    }
+                    case "TileEntities" -> readCompounds(reader, tileEntities);
+                    case "Entities" -> readCompounds(reader, entities);
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endCompound();
+            if (palette == null || sizeTag == null || positionTag == null || blockStates == null)
+                throw new ConversionException("Litematic region is missing required data");
+        } catch (IOException | RuntimeException e) {
+            if (blockStates != null) blockStates.close();
+            throw e;
+        }
+        int[] position = new int[] {positionTag.getInt("x"), positionTag.getInt("y"), positionTag.getInt("z")};
+        int[] size = new int[3];
+        int[] min = new int[3];
+        String[] axes = {"x", "y", "z"};
+        for (int i = 0; i < 3; i++) {
+            // A negative size means the region extends from its position towards negative coordinates
+            int axisSize = sizeTag.getInt(axes[i]);
+            size[i] = Math.abs(axisSize);
+            min[i] = axisSize < 0 ? position[i] + axisSize + 1 : position[i];
+        }
+        long volume = (long) size[0] * size[1] * size[2];
+        if (volume > Integer.MAX_VALUE) {
+            blockStates.close();
+            throw new ConversionException("Litematic region is too large: " + volume + " blocks");
+        }
+        return new Region(palette, size, position, min, blockStates, tileEntities, entities);
+    }
+
+    private static void readCompounds(NbtReader reader, List<CompoundTag> target) throws IOException {
+        reader.beginList();
+        while (reader.hasNext()) target.add(reader.nextLazyCompound());
+        reader.endList();
+    }
+
+    private Schematic buildSchematic(File file, int dataVersion, List<Region> regions) throws IOException {
+        int[] min = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+        long[] max = {Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
+        for (Region region : regions) {
+            for (int i = 0; i < 3; i++) {
+                min[i] = Math.min(min[i], region.min()[i]);
+                max[i] = Math.max(max[i], (long) region.min()[i] + region.size()[i]);
+            }
+        }
+        int[] size = new int[3];
+        for (int i = 0; i < 3; i++) {
+            if (max[i] - min[i] > Integer.MAX_VALUE) throw new ConversionException("Litematic regions are too far apart");
+            size[i] = (int) (max[i] - min[i]);
+        }
+        Schematic.Builder builder = new Schematic.Builder(file, dataVersion, size);
+        int[][] paletteIds = new int[regions.size()][];
+        for (int i = 0; i < regions.size(); i++) {
+            String[] palette = regions.get(i).palette();
+            paletteIds[i] = new int[palette.length];
+            for (int j = 0; j < palette.length; j++) paletteIds[i][j] = builder.getPaletteId(palette[j]);
+        }
+        // Regions are placed in file order, so where they overlap the later one wins
+        int next = 0;
+        while (next < regions.size()) {
+            int first = next;
+            if (regions.get(first).volume() > DECODE_BATCH_VOLUME) {
+                placeChunks(builder, regions.get(first), paletteIds[first], min);
+                next++;
+                continue;
+            }
+            long batchVolume = 0;
+            while (next < regions.size() && batchVolume + regions.get(next).volume() <= DECODE_BATCH_VOLUME)
+                batchVolume += regions.get(next++).volume();
+            // Small regions are read back from their arrays up front, since decoding can't do I/O
+            long[][] words = new long[next - first][];
+            for (int i = 0; i < words.length; i++) {
+                Region region = regions.get(first + i);
+                words[i] = new long[PackedIntArray.requiredLength(bitsPerValue(region), region.volume(), true)];
+                readWords(region, 0, words[i], words[i].length);
+            }
+            int[][] decoded = new int[next - first][];
+            RegionExecutor.forEach(decoded.length, i -> decoded[i] = decodeRegion(regions.get(first + i), words[i], paletteIds[first + i]));
+            for (int i = 0; i < decoded.length; i++) placeBlocks(builder, regions.get(first + i), decoded[i], min);
+        }
+        for (Region region : regions) {
+            int[] offset = new int[3];
+            for (int i = 0; i < 3; i++) offset[i] = region.min()[i] - min[i];
+            for (CompoundTag entityTag : region.tileEntities()) {
+                builder.addBlockEntity(entityTag.getInt("x") + offset[0], entityTag.getInt("y") + offset[1],
+                        entityTag.getInt("z") + offset[2], entityTag);
+                entityTag.remove("x");
+                entityTag.remove("y");
+                entityTag.remove("z");
+            }
+            // Entity positions are relative to the region's position rather than its minimum corner
+            int[] position = region.position();
+            for (CompoundTag entityTag : region.entities()) {
+                ListTag posTag = entityTag.getList("Pos");
+                double[] pos = new double[3];
+                for (int i = 0; i < 3; i++) pos[i] = ((DoubleTag) posTag.get(i)).value() + position[i] - min[i];
+                builder.addEntity(entityTag.getString("id"), pos[0], pos[1], pos[2], entityTag);
+            }
         }
         return builder.build();
     }
 
-    private int[] unpackBlockStates(long[] blockStates, int[] size, String[] palette) {
-        BlockStateContainer container = BlockStateContainer.fromLongArray(blockStates, size, palette.length);
-        return container.getBlockStates();
+    /**
+     * Unpacks a whole region and translates it to builder palette ids. Touches nothing shared, so regions can be
+     * decoded concurrently.
+     */
+    private static int[] decodeRegion(Region region, long[] words, int[] paletteIds) {
+        int[] blocks = new int[region.volume()];
+        new PackedIntArray(bitsPerValue(region), region.volume(), true, words).getAll(blocks);
+        boolean zeroIndexed = false;
+        for (int state : blocks) {
+            if (state == 0) {
+                zeroIndexed = true;
+                break;
+            }
+        }
+        translate(blocks, blocks.length, translationTable(paletteIds, zeroIndexed), paletteIds.length);
+        return blocks;
     }
 
-    @Override
-    public void write(File file, Schematic schematic) throws IOException {
-        CompoundTag tag = new CompoundTag();
-        CompoundTag regions = new CompoundTag();
-        CompoundTag region = new CompoundTag();
-        ListTag paletteTag = new ListTag(Tag.TAG_COMPOUND);
-        List<String> palette = schematic.getPalette();
-        for (String entry : palette) paletteTag.add(NbtUtil.convertFromBlockString(entry));
-        region.put("BlockStatePalette", paletteTag);
-        int[] size = schematic.getSize();
-        CompoundTag sizeTag = new CompoundTag();
-        sizeTag.put("x", new IntTag(size[0]));
-        sizeTag.put("y", new IntTag(size[1]));
-        sizeTag.put("z", new IntTag(size[2]));
-        region.put("Size", sizeTag);
-        int[] blockStates = new int[size[0] * size[1] * size[2]];
+    private static void placeBlocks(Schematic.Builder builder, Region region, int[] blocks, int[] origin) {
+        int[] size = region.size();
+        int x0 = region.min()[0] - origin[0];
+        int y0 = region.min()[1] - origin[1];
+        int z0 = region.min()[2] - origin[2];
         int index = 0;
         for (int y = 0; y < size[1]; y++)
             for (int z = 0; z < size[2]; z++)
                 for (int x = 0; x < size[0]; x++)
-                    blockStates[index++] = schematic.getPaletteBlock(x, y, z) + 1;
-        LongArrayTag blockStatesTag = new LongArrayTag(packBlockStates(blockStates, palette.toArray(new String[0])));
-        region.put("BlockStates", blockStatesTag);
-        CompoundTag posTag = new CompoundTag();
-        posTag.put("x", new IntTag(0));
-        posTag.put("y", new IntTag(0));
-        posTag.put("z", new IntTag(0));
-        region.put("Position", posTag);
-        ListTag tileEntitiesTag = new ListTag(Tag.TAG_COMPOUND);
-        schematic.getBlockEntities().forEach((pos, entity) -> {
-            entity.put("x", new IntTag(pos.x()));
-            entity.put("y", new IntTag(pos.y()));
-            entity.put("z", new IntTag(pos.z()));
-            tileEntitiesTag.add(entity);
-        });
-        region.put("TileEntities", tileEntitiesTag);
-        ListTag entitiesTag = new ListTag(Tag.TAG_COMPOUND);
-        for (Entity entity : schematic.getEntities()) {
-            CompoundTag entityTag = entity.nbt();
-            ListTag entityPosTag = new ListTag(Tag.TAG_DOUBLE);
-            entityPosTag.add(new DoubleTag(entity.x()));
-            entityPosTag.add(new DoubleTag(entity.y()));
-            entityPosTag.add(new DoubleTag(entity.z()));
-            entityTag.put("Pos", entityPosTag);
-            entitiesTag.add(entityTag);
-        }
-        region.put("Entities", entitiesTag);
-        regions.put(Util.stripExtension(schematic.getSourceFile().getName()), region);
-        tag.put("Regions", regions);
-        tag.put("MinecraftDataVersion", new IntTag(schematic.getDataVersion()));
-        tag.put("Version", new IntTag(6));
-        CompoundTag metadataTag = new CompoundTag();
-        metadataTag.put("EnclosingSize", sizeTag);
-        metadataTag.put("Name", new StringTag(schematic.getSourceFile().getName()));
-        metadataTag.put("TimeCreated", new LongTag(getCreationTime(schematic.getSourceFile())));
-        metadataTag.put("TimeModified", new LongTag(schematic.getSourceFile().lastModified()));
-        metadataTag.put("TotalVolume", new IntTag(size[0] * size[1] * size[2]));
-        metadataTag.put("RegionCount", new IntTag(1));
-        tag.put("Metadata", metadataTag);
-        NbtUtil.write(tag, file);
+                    builder.setBlockIdAt(x0 + x, y0 + y, z0 + z, blocks[index++]);
     }
 
-    private static long getCreationTime(File file) throws IOException {
-        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).creationTime().toMillis();
+    /**
+     * Decodes and places a large region one chunk at a time, reading its packed states back from the spooled array,
+     * so that it never needs a full unpacked or packed copy on the heap.
+     */
+    private static void placeChunks(Schematic.Builder builder, Region region, int[] paletteIds, int[] origin)
+            throws IOException {
+        int bitsPerValue = bitsPerValue(region);
+        int volume = region.volume();
+        int[] states = new int[CHUNK_VOLUME];
+        long[] words = new long[PackedIntArray.requiredLength(bitsPerValue, CHUNK_VOLUME, true)];
+        boolean zeroIndexed = false;
+        for (int start = 0; start < volume && !zeroIndexed; start += CHUNK_VOLUME) {
+            int count = unpackChunk(region, start, Math.min(CHUNK_VOLUME, volume - start), words, states);
+            for (int i = 0; i < count && !zeroIndexed; i++) zeroIndexed = states[i] == 0;
+        }
+        int[] ids = translationTable(paletteIds, zeroIndexed);
+        int[] size = region.size();
+        int x0 = region.min()[0] - origin[0];
+        int y0 = region.min()[1] - origin[1];
+        int z0 = region.min()[2] - origin[2];
+        int x = 0;
+        int y = 0;
+        int z = 0;
+        for (int start = 0; start < volume; start += CHUNK_VOLUME) {
+            int count = unpackChunk(region, start, Math.min(CHUNK_VOLUME, volume - start), words, states);
+            translate(states, count, ids, paletteIds.length);
+            for (int i = 0; i < count; i++) {
+                builder.setBlockIdAt(x0 + x, y0 + y, z0 + z, states[i]);
+                if (++x == size[0]) {
+                    x = 0;
+                    if (++z == size[2]) {
+                        z = 0;
+                        y++;
+                    }
+                }
+            }
+        }
     }
 
-    private long[] packBlockStates(int[] states,String[] palette) {
-        BlockStateContainer container = new BlockStateContainer(palette.length);
-        for (int state : states) container.addBlockState(state);
-        return container.toLongArray();
+    /**
+     * Unpacks {@code count} states starting at {@code start}, which must be a multiple of {@link #CHUNK_VOLUME}.
+     */
+    private static int unpackChunk(Region region, int start, int count, long[] words, int[] states) throws IOException {
+        int bitsPerValue = bitsPerValue(region);
+        int wordCount = PackedIntArray.requiredLength(bitsPerValue, count, true);
+        readWords(region, (long) start * bitsPerValue / Long.SIZE, words, wordCount);
+        new PackedIntArray(bitsPerValue, count, true, words).get(0, states, 0, count);
+        return count;
     }
 
-    @Override
-    public String getExtension() {
-        return ".litematic";
+    /**
+     * Reads {@code count} words of a region's packed states. Files may trim trailing zero words, so words past the end
+     * of the array are zero.
+     */
+    private static void readWords(Region region, long firstWord, long[] words, int count) throws IOException {
+        int available = (int) Math.max(0, Math.min(count, region.blockStates().length() - firstWord));
+        region.blockStates().getLongs(firstWord, words, 0, available);
+        Arrays.fill(words, available, count, 0);
     }
 
-    private static class BlockStateContainer {
-        private final BitSet bits;
-        private final int bitsPerValue;
-        private int numBits;
+    private static int bitsPerValue(Region region) {
+        return Math.max(2, Integer.SIZE - Integer.numberOfLeadingZeros(region.palette().length));
+    }
 
-        public BlockStateContainer(int paletteSize) {
-            this(new BitSet(), Math.max(2, Integer.SIZE - Integer.numberOfLeadingZeros(paletteSize)), 0);
-        }
+    /**
+     * Maps packed states to palette ids. Files that never use state 0 have their palette shifted up by one.
+     */
+    private static int[] translationTable(int[] paletteIds, boolean zeroIndexed) {
+        int offset = zeroIndexed ? 0 : 1;
+        int[] ids = new int[paletteIds.length + offset];
+        System.arraycopy(paletteIds, 0, ids, offset, paletteIds.length);
+        return ids;
+    }
 
-        private BlockStateContainer(BitSet bits, int bitsPerValue, int numBits) {
-            this.bits = bits;
-            this.bitsPerValue = bitsPerValue;
-            this.numBits = numBits;
-        }
+    private static void translate(int[] states, int count, int[] ids, int paletteSize) {
+        int invalid = PackedInts.translate(states, 0, count, ids);
+        if (invalid != -1)
+            throw new ConversionException("Invalid palette index: " + (states[invalid] - (ids.length - paletteSize)));
+    }
 
-        public void addBlockState(int blockState) {
-            for (int i = 0; i < bitsPerValue; i++) {
-                if ((blockState & 1 << i) != 0) bits.set(numBits + i);
-                else bits.clear(numBits + i);
-            }
-            numBits += bitsPerValue;
+    /**
+     * Writes the schematic as one region, or as regions stacked along the y axis if it has more blocks than a region
+     * can hold. Block states are packed and written a chunk at a time.
+     */
+    @Override
+    public void write(OutputStream out, Schematic schematic) throws IOException {
+        int[] size = schematic.getSize();
+        long layerVolume = (long) size[0] * size[2];
+        if (layerVolume > Integer.MAX_VALUE)
+            throw new ConversionException("Litematic regions can hold at most " + Integer.MAX_VALUE
+                    + " blocks per layer, but the schematic is " + size[0] + "x" + size[2] + " blocks wide");
+        int regionHeight = layerVolume == 0 ? size[1] : (int) Math.min(size[1], Integer.MAX_VALUE / layerVolume);
+        int regionCount = size[1] == 0 ? 1 : Math.ceilDiv(size[1], regionHeight);
+        List<List<Map.Entry<Pos, CompoundTag>>> tileEntities = new ArrayList<>();
+        for (int i = 0; i < regionCount; i++) tileEntities.add(new ArrayList<>());
+        for (Map.Entry<Pos, CompoundTag> entry : schematic.getBlockEntities().entrySet()) {
+            int region = regionCount == 1 ? 0 : Math.clamp(entry.getKey().y() / regionHeight, 0, regionCount - 1);
+            tileEntities.get(region).add(entry);
         }
-
-        public int[] getBlockStates() {
-            int totalValues = numBits / bitsPerValue;
-            int[] blockStates = new int[totalValues];
-            for (int i = 0; i < totalValues; i++) {
-                int value = 0;
-                for (int j = 0; j < bitsPerValue; j++) if (bits.get(i * bitsPerValue + j)) value |= 1 << j;
-                blockStates[i] = value;
-            }
-            return blockStates;
+        String name = Util.stripExtension(schematic.getSourceFile().getName());
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out);
+        NbtWriter writer = new NbtWriter(new DataOutputStream(gzip));
+        writer.beginCompound();
+        writer.name("MinecraftDataVersion");
+        writer.writeInt(schematic.getDataVersion());
+        writer.name("Version");
+        writer.writeInt(6);
+        writer.name("Regions");
+        writer.beginCompound();
+        for (int i = 0; i < regionCount; i++) {
+            int minY = i * regionHeight;
+            writer.name(regionCount == 1 ? name : name + "_" + i);
+            writeRegion(writer, schematic, minY, Math.min(regionHeight, size[1] - minY), tileEntities.get(i),
+                    i == 0 ? schematic.getEntities() : List.of());
         }
+        writer.endCompound();
+        writer.name("Metadata");
+        writer.beginCompound();
+        writer.name("EnclosingSize");
+        writeVector(writer, size[0], size[1], size[2]);
+        writer.name("Name");
+        writer.writeString(schematic.getSourceFile().getName());
+        writer.name("TimeCreated");
+        writer.writeLong(getCreationTime(schematic.getSourceFile()));
+        writer.name("TimeModified");
+        writer.writeLong(getModifiedTime(schematic.getSourceFile()));
+        writer.name("TotalVolume");
+        writer.writeInt((int) Math.min(layerVolume * size[1], Integer.MAX_VALUE));
+        writer.name("RegionCount");
+        writer.writeInt(regionCount);
+        writer.endCompound();
+        writer.endCompound();
+        writer.flush();
+        gzip.finish();
+    }
 
-        public long[] toLongArray() {
-            return bits.toLongArray();
+    private static void writeRegion(NbtWriter writer, Schematic schematic, int minY, int height,
+            List<Map.Entry<Pos, CompoundTag>> tileEntities, List<Entity> entities) throws IOException {
+        int[] size = schematic.getSize();
+        List<String> palette = schematic.getPalette();
+        writer.beginCompound();
+        writer.name("BlockStatePalette");
+        writer.beginList(Tag.TAG_COMPOUND, palette.size());
+        for (String entry : palette) writer.writeTag(BlockState.parse(entry).toTag());
+        writer.endList();
+        writer.name("Size");
+        writeVector(writer, size[0], height, size[2]);
+        writer.name("BlockStates");
+        writeBlockStates(writer, schematic, minY, height);
+        writer.name("Position");
+        writeVector(writer, 0, minY, 0);
+        writer.name("TileEntities");
+        writer.beginList(Tag.TAG_COMPOUND, tileEntities.size());
+        for (Map.Entry<Pos, CompoundTag> entry : tileEntities) {
+            Pos pos = entry.getKey();
+            writer.beginCompound();
+            writer.writeEntries(entry.getValue(), "x", "y", "z");
+            writer.name("x");
+            writer.writeInt(pos.x());
+            writer.name("y");
+            writer.writeInt(pos.y() - minY);
+            writer.name("z");
+            writer.writeInt(pos.z());
+            writer.endCompound();
+        }
+        writer.endList();
+        writer.name("Entities");
+        writer.beginList(Tag.TAG_COMPOUND, entities.size());
+        for (Entity entity : entities) {
+            writer.beginCompound();
+            writer.writeEntries(entity.nbt(), "Pos");
+            writer.name("Pos");
+            writer.beginList(Tag.TAG_DOUBLE, 3);
+            writer.writeDouble(entity.x());
+            writer.writeDouble(entity.y());
+            writer.writeDouble(entity.z());
+            writer.endList();
+            writer.endCompound();
         }
+        writer.endList();
+        writer.endCompound();
+    }
 
-        public static BlockStateContainer fromLongArray(long[] longs, int[] size, int paletteSize) {
-            int bitsPerValue = Math.max(2, Integer.SIZE - Integer.numberOfLeadingZeros(paletteSize));
-            int totalValues = size[0] * size[1] * size[2];
-            int totalBits = totalValues * bitsPerValue;
 
-            BitSet bits = BitSet.valueOf(longs);
-            if (totalBits % Long.SIZE != 0) {
-                int startIndex = (longs.length - 1) * Long.SIZE;
-                int remainingBits = totalBits - startIndex;
-                long value = longs[longs.length - 1];
-                for (int i = 0; i < remainingBits; i++) {
-                    if ((value & (1L << i)) != 0) bits.set(startIndex + i);
-                    else bits.clear(startIndex + i);
+    private static void writeVector(NbtWriter writer, int x, int y, int z) throws IOException {
+        writer.beginCompound();
+        writer.name("x");
+        writer.writeInt(x);
+        writer.name("y");
+        writer.writeInt(y);
+        writer.name("z");
+        writer.writeInt(z);
+        writer.endCompound();
+    }
+
+    /**
+     * Packs the layers {@code minY} to {@code minY + height} a chunk at a time. Chunks hold a multiple of 64 states,
+     * so each one packs into whole words independently of the others.
+     */
+    private static void writeBlockStates(NbtWriter writer, Schematic schematic, int minY, int height)
+            throws IOException {
+        int[] size = schematic.getSize();
+        int volume = size[0] * height * size[2];
+        int bitsPerValue = Math.max(2, Integer.SIZE - Integer.numberOfLeadingZeros(schematic.getPalette().size()));
+        int[] states = new int[Math.min(volume, CHUNK_VOLUME)];
+        long[] words = new long[PackedIntArray.requiredLength(bitsPerValue, states.length, true)];
+        writer.beginArray(Tag.TAG_LONG_ARRAY, PackedIntArray.requiredLength(bitsPerValue, volume, true));
+        int count = 0;
+        for (int y = minY; y < minY + height; y++) {
+            for (int z = 0; z < size[2]; z++) {
+                for (int x = 0; x < size[0]; x++) {
+                    states[count++] = schematic.getPaletteBlock(x, y, z) + 1;
+                    if (count == states.length) {
+                        packChunk(writer, states, count, bitsPerValue, words);
+                        count = 0;
+                    }
                 }
             }
-            return new BlockStateContainer(bits, bitsPerValue, totalBits);
+        }
+        if (count > 0) packChunk(writer, states, count, bitsPerValue, words);
+        writer.endArray();
+    }
+
+    private static void packChunk(NbtWriter writer, int[] states, int count, int bitsPerValue, long[] words)
+            throws IOException {
+        new PackedIntArray(bitsPerValue, count, true, words).setAll(states);
+        writer.writeLongs(words, 0, PackedIntArray.requiredLength(bitsPerValue, count, true));
+    }
+
+    // Schematics converted from uploaded contents have no source file on disk, so they are stamped with the current time
+
+    private static long getCreationTime(File file) throws IOException {
+        if (!file.exists()) return System.currentTimeMillis();
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).creationTime().toMillis();
+    }
+
+    private static long getModifiedTime(File file) {
+        if (!file.exists()) return System.currentTimeMillis();
+        return file.lastModified();
+    }
+
+    @Override
+    public String describeSource(File source) throws IOException {
+        // Uploads are stamped with the time they are converted, so no two outputs are the same
+        if (!source.exists()) return null;
+        return source.getName() + "\0" + getCreationTime(source) + "\0" + getModifiedTime(source);
+    }
+
+    @Override
+    public String getExtension() {
+        return ".litematic";
+    }
+
+    private record Region(String[] palette, int[] size, int[] position, int[] min, SpooledArray blockStates,
+            List<CompoundTag> tileEntities, List<CompoundTag> entities) {
+        private int volume() {
+            return size[0] * size[1] * size[2];
         }
     }
 }
@@ -1,45 +1,105 @@
 package pitheguy.schemconvert.converter.formats;
 
 import pitheguy.schemconvert.converter.*;
+import pitheguy.schemconvert.nbt.NbtReader;
 import pitheguy.schemconvert.nbt.NbtUtil;
+import pitheguy.schemconvert.nbt.NbtWriter;
+import pitheguy.schemconvert.nbt.ParallelGzipOutputStream;
 import pitheguy.schemconvert.nbt.tags.*;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.util.*;
 
 public class NbtSchematicFormat implements SchematicFormat {
 
     @Override
     public Schematic read(File file) throws IOException {
-        CompoundTag tag = NbtUtil.read(file);
-        if (!tag.contains("size", Tag.TAG_LIST)) {
+        try (NbtReader reader = NbtReader.open(file)) {
+            return read(file, reader);
+        }
+    }
+
+    @Override
+    public Schematic read(File file, byte[] data) throws IOException {
+        try (NbtReader reader = NbtReader.open(data)) {
+            return read(file, reader);
+        }
+    }
+
+    /**
+     * Reads the structure entry by entry. The palette comes after the blocks, so blocks are kept as packed positions
+     * and states until the end rather than as a tag tree.
+     */
+    private Schematic read(File file, NbtReader reader) throws IOException {
+        int[] size = null;
+        int dataVersion = 0;
+        String[] palette = new String[0];
+        int[] blocks = new int[0];
+        int blockCount = 0;
+        List<Integer> blockEntityIndices = new ArrayList<>();
+        List<CompoundTag> blockEntities = new ArrayList<>();
+        List<CompoundTag> entities = new ArrayList<>();
+        Set<String> keys = new LinkedHashSet<>();
+        reader.beginCompound();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            keys.add(name);
+            switch (name) {
+                case "size" -> {
+                    if (reader.peek() != Tag.TAG_LIST) {
+                        reader.skipValue();
+                        break;
+                    }
+                    ListTag sizeTag = (ListTag) reader.nextTag();
+                    size = new int[3];
+                    for (int i = 0; i < 3; i++)
+                        size[i] = NbtUtil.getInt(sizeTag.get(i));
+                }
+                case "DataVersion" -> dataVersion = NbtUtil.getInt(reader.nextTag());
+                case "palette" -> {
+                    ListTag paletteTag = (ListTag) reader.nextTag();
+                    palette = new String[paletteTag.size()];
+                    for (int i = 0; i < paletteTag.size(); i++)
+                        palette[i] = BlockState.fromTag(NbtUtil.getCompound(paletteTag.get(i))).toString();
+                }
+                case "blocks" -> {
+                    reader.beginList();
+                    while (reader.hasNext()) {
+                        if (blockCount * 4 == blocks.length)
+                            blocks = Arrays.copyOf(blocks, Math.max(64, blocks.length * 2));
+                        CompoundTag nbt = readBlock(reader, blocks, blockCount * 4);
+                        if (nbt != null) {
+                            blockEntityIndices.add(blockCount);
+                            blockEntities.add(nbt);
+                        }
+                        blockCount++;
+                    }
+                    reader.endList();
+                }
+                case "entities" -> {
+                    reader.beginList();
+                    while (reader.hasNext()) entities.add(reader.nextLazyCompound());
+                    reader.endList();
+                }
+                default -> reader.skipValue();
+            }
+        }
+        if (size == null) {
             throw new ConversionException(
-                    "Invalid NBT Schematic format. Missing 'size' tag. Found keys: " + tag.keySet());
+                    "Invalid NBT Schematic format. Missing 'size' tag. Found keys: " + keys);
         }
-        ListTag sizeTag = tag.getList("size");
-        int[] size = new int[3];
-        for (int i = 0; i < 3; i++)
-            size[i] = NbtUtil.getInt(sizeTag.get(i));
-        ListTag paletteTag = tag.getList("palette");
-        String[] palette = new String[paletteTag.size()];
-        for (int i = 0; i < paletteTag.size(); i++)
-            palette[i] = NbtUtil.convertToBlockString(NbtUtil.getCompound(paletteTag.get(i)));
-        Schematic.Builder builder = new Schematic.Builder(file, tag.getInt("DataVersion"), size[0], size[1], size[2]);
-        ListTag blocksTag = tag.getList("blocks");
-        for (Tag value : blocksTag) {
-            CompoundTag entry = (CompoundTag) value;
-            ListTag posTag = entry.getList("pos");
-            int[] pos = new int[3];
-            for (int i = 0; i < 3; i++)
-                pos[i] = NbtUtil.getInt(posTag.get(i));
-            int state = entry.getInt("state");
-            builder.setBlockAt(pos[0], pos[1], pos[2], palette[state]);
-            if (entry.contains("nbt", Tag.TAG_COMPOUND))
-                builder.addBlockEntity(pos[0], pos[1], pos[2], entry.getCompound("nbt"));
+        Schematic.Builder builder = new Schematic.Builder(file, dataVersion, size[0], size[1], size[2]);
+        for (int i = 0; i < blockCount; i++) {
+            int state = blocks[i * 4 + 3];
+            if (state < 0 || state >= palette.length)
+                throw new ConversionException("Invalid palette index: " + state);
+            builder.setBlockAt(blocks[i * 4], blocks[i * 4 + 1], blocks[i * 4 + 2], palette[state]);
+        }
+        for (int i = 0; i < blockEntities.size(); i++) {
+            int index = blockEntityIndices.get(i) * 4;
+            builder.addBlockEntity(blocks[index], blocks[index + 1], blocks[index + 2], blockEntities.get(i));
         }
-        ListTag entitiesTag = tag.getList("entities");
-        for (Tag value : entitiesTag) {
-            CompoundTag entityTag = (CompoundTag) value;
+        for (CompoundTag entityTag : entities) {
             ListTag posTag = entityTag.getList("pos");
             double[] pos = new double[3];
             for (int i = 0; i < 3; i++)
@@ -50,62 +110,134 @@ public class NbtSchematicFormat implements SchematicFormat {
         return builder.build();
     }
 
+    /**
+     * Reads one entry of the blocks list into {@code blocks} as x, y, z and state, and returns its block entity data if
+     * it has any.
+     */
+    private static CompoundTag readBlock(NbtReader reader, int[] blocks, int offset) throws IOException {
+        CompoundTag nbt = null;
+        reader.beginCompound();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "pos" -> {
+                    ListTag posTag = (ListTag) reader.nextTag();
+                    for (int i = 0; i < 3; i++)
+                        blocks[offset + i] = NbtUtil.getInt(posTag.get(i));
+                }
+                case "state" -> blocks[offset + 3] = NbtUtil.getInt(reader.nextTag());
+                case "nbt" -> {
+                    if (reader.peek() == Tag.TAG_COMPOUND) nbt = reader.nextLazyCompound();
+                    else reader.skipValue();
+                }
+                default -> reader.skipValue();
+            }
+        }
+        reader.endCompound();
+        return nbt;
+    }
+
     @Override
-    public void write(File file, Schematic schematic) throws IOException {
+    public void write(OutputStream out, Schematic schematic) throws IOException {
         int[] size = schematic.getSize();
         if (size[0] > 48 || size[1] > 48 || size[2] > 48)
             throw new ConversionException(
                     "The NBT schematic format only supports schematics of up to 48x48x48 blocks.");
-        CompoundTag tag = new CompoundTag();
-        ListTag sizeTag = new ListTag(Tag.TAG_INT);
-        for (int i : size)
-            sizeTag.add(new IntTag(i));
-        ListTag paletteTag = new ListTag(Tag.TAG_COMPOUND);
-        for (String block : schematic.getPalette())
-            paletteTag.add(NbtUtil.convertFromBlockString(block));
-        ListTag blocksTag = new ListTag(Tag.TAG_COMPOUND);
+        // Block entities sorted by their position in the x-y-z write order, so they can be matched with a cursor.
+        // Ones outside the schematic have no block to attach to and are dropped.
+        Map<Pos, CompoundTag> blockEntities = schematic.getBlockEntities();
+        Pos[] positions = blockEntities.keySet().toArray(new Pos[0]);
+        long[] keys = new long[positions.length];
+        int keyCount = 0;
+        for (int i = 0; i < positions.length; i++) {
+            Pos pos = positions[i];
+            if (pos.x() < 0 || pos.y() < 0 || pos.z() < 0 || pos.x() >= size[0] || pos.y() >= size[1]
+                    || pos.z() >= size[2])
+                continue;
+            keys[keyCount++] = (long) ((pos.x() * size[1] + pos.y()) * size[2] + pos.z()) << 32 | i;
+        }
+        keys = Arrays.copyOf(keys, keyCount);
+        Arrays.sort(keys);
+        int[] blockEntityIndices = new int[keys.length];
+        CompoundTag[] blockEntityTags = new CompoundTag[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            blockEntityIndices[i] = (int) (keys[i] >> 32);
+            blockEntityTags[i] = blockEntities.get(positions[(int) keys[i]]);
+        }
+        int blockCount = 0;
+        for (int x = 0; x < size[0]; x++)
+            for (int y = 0; y < size[1]; y++)
+                for (int z = 0; z < size[2]; z++)
+                    if (schematic.getPaletteBlock(x, y, z) != -1) blockCount++;
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out);
+        NbtWriter writer = new NbtWriter(new DataOutputStream(gzip));
+        writer.beginCompound();
+        writer.name("entities");
+        List<Entity> entities = schematic.getEntities();
+        writer.beginList(Tag.TAG_COMPOUND, entities.size());
+        for (Entity entity : entities) writer.writeTag(createEntityTag(entity));
+        writer.endList();
+        writer.name("size");
+        writer.beginList(Tag.TAG_INT, 3);
+        for (int i : size) writer.writeInt(i);
+        writer.endList();
+        writer.name("blocks");
+        writer.beginList(Tag.TAG_COMPOUND, blockCount);
+        int nextBlockEntity = 0;
+        int index = 0;
         for (int x = 0; x < size[0]; x++) {
             for (int y = 0; y < size[1]; y++) {
-                for (int z = 0; z < size[2]; z++) {
+                for (int z = 0; z < size[2]; z++, index++) {
                     int state = schematic.getPaletteBlock(x, y, z);
                     if (state == -1)
                         continue;
-                    ListTag posTag = new ListTag(Tag.TAG_INT);
-                    for (int i : new int[] { x, y, z })
-                        posTag.add(new IntTag(i));
-                    CompoundTag entry = new CompoundTag();
-                    entry.put("pos", posTag);
-                    entry.put("state", new IntTag(state));
-                    if (schematic.hasBlockEntityAt(x, y, z))
-                        entry.put("nbt", schematic.getBlockEntityAt(x, y, z));
-                    blocksTag.add(entry);
+                    writer.beginCompound();
+                    writer.name("pos");
+                    writer.beginList(Tag.TAG_INT, 3);
+                    writer.writeInt(x);
+                    writer.writeInt(y);
+                    writer.writeInt(z);
+                    writer.endList();
+                    writer.name("state");
+                    writer.writeInt(state);
+                    while (nextBlockEntity < blockEntityIndices.length && blockEntityIndices[nextBlockEntity] < index)
+                        nextBlockEntity++;
+                    if (nextBlockEntity < blockEntityIndices.length && blockEntityIndices[nextBlockEntity] == index) {
+                        writer.name("nbt");
+                        writer.writeTag(blockEntityTags[nextBlockEntity]);
+                    }
+                    writer.endCompound();
                 }
             }
         }
-        ListTag entitiesTag = new ListTag(Tag.TAG_COMPOUND);
-        for (Entity entity : schematic.getEntities()) {
-            CompoundTag entityTag = new CompoundTag();
-            ListTag posTag = new ListTag(Tag.TAG_DOUBLE);
-            posTag.add(new DoubleTag(entity.x()));
-            posTag.add(new DoubleTag(entity.y()));
-            posTag.add(new DoubleTag(entity.z()));
-            entityTag.put("pos", posTag);
-            ListTag blockPosTag = new ListTag(Tag.TAG_INT);
-            blockPosTag.add(new IntTag((int) entity.x()));
-            blockPosTag.add(new IntTag((int) entity.y()));
-            blockPosTag.add(new IntTag((int) entity.z()));
-            entityTag.put("blockPos", blockPosTag);
-            CompoundTag nbt = entity.nbt();
-            nbt.put("id", new StringTag(entity.id()));
-            entityTag.put("nbt", nbt);
-            entitiesTag.add(entityTag);
-        }
-        tag.put("entities", entitiesTag);
-        tag.put("size", sizeTag);
-        tag.put("blocks", blocksTag);
-        tag.put("palette", paletteTag);
-        tag.put("DataVersion", new IntTag(schematic.getDataVersion()));
-        NbtUtil.write(tag, file);
+        writer.endList();
+        writer.name("palette");
+        List<String> palette = schematic.getPalette();
+        writer.beginList(Tag.TAG_COMPOUND, palette.size());
+        for (String block : palette) writer.writeTag(BlockState.parse(block).toTag());
+        writer.endList();
+        writer.name("DataVersion");
+        writer.writeInt(schematic.getDataVersion());
+        writer.endCompound();
+        writer.flush();
+        gzip.finish();
+    }
+
+    private static CompoundTag createEntityTag(Entity entity) {
+        CompoundTag entityTag = new CompoundTag();
+        ListTag posTag = new ListTag(Tag.TAG_DOUBLE);
+        posTag.add(new DoubleTag(entity.x()));
+        posTag.add(new DoubleTag(entity.y()));
+        posTag.add(new DoubleTag(entity.z()));
+        entityTag.put("pos", posTag);
+        ListTag blockPosTag = new ListTag(Tag.TAG_INT);
+        blockPosTag.add(new IntTag((int) entity.x()));
+        blockPosTag.add(new IntTag((int) entity.y()));
+        blockPosTag.add(new IntTag((int) entity.z()));
+        entityTag.put("blockPos", blockPosTag);
+        CompoundTag nbt = entity.nbt();
+        nbt.put("id", new StringTag(entity.id()));
+        entityTag.put("nbt", nbt);
+        return entityTag;
     }
 
     @Override
@@ -1,61 +1,177 @@
 package pitheguy.schemconvert.converter.formats;
 
 import pitheguy.schemconvert.converter.*;
+import pitheguy.schemconvert.nbt.NbtReader;
 import pitheguy.schemconvert.nbt.NbtUtil;
+import pitheguy.schemconvert.nbt.NbtWriter;
+import pitheguy.schemconvert.nbt.ParallelGzipOutputStream;
 import pitheguy.schemconvert.nbt.tags.*;
-import pitheguy.schemconvert.util.VarIntIterator;
+import pitheguy.schemconvert.util.PackedInts;
+import pitheguy.schemconvert.util.VarInts;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.OutputStream;
+import java.util.*;
 
 public class SchemSchematicFormat implements SchematicFormat {
     @Override
     public Schematic read(File file) throws IOException {
-        CompoundTag tag = NbtUtil.read(file);
-        if (tag.contains("Schematic", Tag.TAG_COMPOUND)) return readV3(file, tag.getCompound("Schematic"));
-        else {
-            int version = tag.getInt("Version");
-            if (version == 2) return readV2(file, tag);
-            else if (version == 1) throw new ConversionException("Sponge version 1 is not currently supported.");
-            else throw new ConversionException("Unknown sponge version");
+        try (NbtReader reader = NbtReader.open(file)) {
+            return read(file, reader);
         }
     }
 
-    private Schematic readV3(File file, CompoundTag schematicTag) {
-        int xSize = schematicTag.getShort("Width");
-        int ySize = schematicTag.getShort("Height");
-        int zSize = schematicTag.getShort("Length");
-        CompoundTag blocksTag = schematicTag.getCompound("Blocks");
-        CompoundTag paletteTag = blocksTag.getCompound("Palette");
-        int paletteMax = paletteTag.keySet().size() - 1;
-        String[] palette = new String[paletteMax + 1];
-        for (String key : paletteTag.keySet()) {
-            int index = paletteTag.getInt(key);
-            palette[index] = key;
-        }
-        Schematic.Builder builder = new Schematic.Builder(file, schematicTag.getInt("DataVersion"), xSize, ySize, zSize);
-        byte[] blockData = blocksTag.getByteArray("Data");
-        VarIntIterator blocks = new VarIntIterator(blockData);
-        for (int y = 0; y < ySize; y++)
-            for (int z = 0; z < zSize; z++)
-                for (int x = 0; x < xSize; x++) {
-                    int paletteIndex = blocks.next();
-                    builder.setBlockAt(x, y, z, palette[paletteIndex]);
+    @Override
+    public Schematic read(File file, byte[] data) throws IOException {
+        try (NbtReader reader = NbtReader.open(data)) {
+            return read(file, reader);
+        }
+    }
+
+    private Schematic read(File file, NbtReader reader) throws IOException {
+        SpongeReader sponge = new SpongeReader(file, reader);
+        boolean v3 = false;
+        reader.beginCompound();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (key.equals("Schematic") && reader.peek() == Tag.TAG_COMPOUND) {
+                v3 = true;
+                reader.beginCompound();
+                while (reader.hasNext()) sponge.readField(reader.nextName(), true);
+                reader.endCompound();
+            } else sponge.readField(key, false);
+        }
+        if (!v3) {
+            if (sponge.version == 1) throw new ConversionException("Sponge version 1 is not currently supported.");
+            else if (sponge.version != 2) throw new ConversionException("Unknown sponge version");
+        }
+        return sponge.finish();
+    }
+
+    /**
+     * Streams a Sponge schematic into a builder. Block data is decoded straight from the input when the size and
+     * palette have already been read, and only buffered when they appear after it.
+     */
+    private static class SpongeReader {
+        private final File file;
+        private final NbtReader reader;
+        private int version = -1;
+        private int dataVersion = -1;
+        private int xSize = -1;
+        private int ySize = -1;
+        private int zSize = -1;
+        private String[] palette;
+        private byte[] blockData;
+        private Schematic.Builder builder;
+        private final List<CompoundTag> blockEntities = new ArrayList<>();
+        private final List<CompoundTag> entities = new ArrayList<>();
+
+        private SpongeReader(File file, NbtReader reader) {
+            this.file = file;
+            this.reader = reader;
+        }
+
+        private void readField(String key, boolean v3) throws IOException {
+            switch (key) {
+                case "Version" -> version = reader.nextInt();
+                case "DataVersion" -> dataVersion = reader.nextInt();
+                case "Width" -> xSize = reader.nextShort() & 0xFFFF;
+                case "Height" -> ySize = reader.nextShort() & 0xFFFF;
+                case "Length" -> zSize = reader.nextShort() & 0xFFFF;
+                case "Palette" -> readPalette();
+                case "BlockData" -> readBlockData();
+                case "BlockEntities" -> readCompounds(blockEntities);
+                case "Blocks" -> {
+                    if (!v3 || reader.peek() != Tag.TAG_COMPOUND) {
+                        reader.skipValue();
+                        return;
+                    }
+                    reader.beginCompound();
+                    while (reader.hasNext()) {
+                        switch (reader.nextName()) {
+                            case "Palette" -> readPalette();
+                            case "Data" -> readBlockData();
+                            case "BlockEntities" -> readCompounds(blockEntities);
+                            default -> reader.skipValue();
+                        }
+                    }
+                    reader.endCompound();
+                }
+                case "Entities" -> {
+                    if (v3) readCompounds(entities);
+                    else reader.skipValue();
                 }
-        if (schematicTag.contains("BlockEntities", Tag.TAG_LIST)) {
-            ListTag blockEntitiesTag = blocksTag.getList("BlockEntities");
-            for (Tag value : blockEntitiesTag) {
-                CompoundTag blockEntity = (CompoundTag) value;
+                default -> reader.skipValue();
+            }
+        }
+
+        private void readPalette() throws IOException {
+            Map<String, Integer> entries = new HashMap<>();
+            reader.beginCompound();
+            while (reader.hasNext()) {
+                String block = reader.nextName();
+                entries.put(block, reader.nextInt());
+            }
+            reader.endCompound();
+            // Indices come from the file, so they are checked before they size or index anything
+            palette = new String[entries.size()];
+            for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+                int index = entry.getValue();
+                if (index < 0 || index >= palette.length)
+                    throw new ConversionException("Invalid palette index for " + entry.getKey() + ": " + index);
+                palette[index] = entry.getKey();
+            }
+        }
+
+        private void readCompounds(List<CompoundTag> target) throws IOException {
+            reader.beginList();
+            while (reader.hasNext()) target.add(reader.nextLazyCompound());
+            reader.endList();
+        }
+
+        private void readBlockData() throws IOException {
+            if (palette == null || xSize == -1 || ySize == -1 || zSize == -1) {
+                blockData = reader.nextByteArray();
+                return;
+            }
+            BlockDataDecoder decoder = createDecoder();
+            byte[] buffer = new byte[8192];
+            int remaining = reader.beginArray();
+            while (remaining > 0) {
+                int read = reader.readBytes(buffer, 0, Math.min(buffer.length, remaining));
+                decoder.accept(buffer, 0, read);
+                remaining -= read;
+            }
+            reader.endArray();
+        }
+
+        private BlockDataDecoder createDecoder() {
+            if (palette == null) throw new ConversionException("Sponge schematic is missing its palette");
+            int[] ids = new int[palette.length];
+            for (int i = 0; i < palette.length; i++)
+                ids[i] = palette[i] == null ? -1 : getBuilder().getPaletteId(palette[i]);
+            return new BlockDataDecoder(getBuilder(), ids, xSize, ySize, zSize);
+        }
+
+        private Schematic.Builder getBuilder() {
+            if (builder == null) {
+                if (xSize == -1 || ySize == -1 || zSize == -1)
+                    throw new ConversionException("Sponge schematic is missing its size");
+                builder = new Schematic.Builder(file, dataVersion, xSize, ySize, zSize);
+            }
+            return builder;
+        }
+
+        private Schematic finish() {
+            Schematic.Builder builder = getBuilder().setDataVersion(dataVersion);
+            if (blockData != null) createDecoder().accept(blockData, 0, blockData.length);
+            for (CompoundTag blockEntity : blockEntities) {
                 int[] pos = blockEntity.getIntArray("Pos");
                 builder.addBlockEntity(pos[0], pos[1], pos[2], blockEntity);
             }
-        }
-        if (schematicTag.contains("Entities", Tag.TAG_LIST)) {
-            ListTag entitiesTag = schematicTag.getList("Entities");
-            for (Tag value : entitiesTag) {
-                CompoundTag entity = (CompoundTag) value;
+            for (CompoundTag entity : entities) {
                 ListTag posTag = entity.getList("Pos");
                 double[] pos = new double[3];
                 for (int i = 0; i < 3; i++) pos[i] = ((DoubleTag) posTag.get(i)).value();
@@ -63,89 +179,160 @@ public class SchemSchematicFormat implements SchematicFormat {
                 CompoundTag nbt = entity.getCompound("Data");
                 builder.addEntity(id, pos[0], pos[1], pos[2], nbt);
             }
+            return builder.build();
         }
-        return builder.build();
     }
 
-    private Schematic readV2(File file, CompoundTag schematicTag) {
-        int paletteMax = schematicTag.getInt("PaletteMax");
-        String[] palette = new String[paletteMax];
-        CompoundTag paletteTag = schematicTag.getCompound("Palette");
-        for (String key : paletteTag.keySet()) {
-            int index = paletteTag.getInt(key);
-            palette[index] = key;
-        }
-        int xSize = schematicTag.getShort("Width");
-        int ySize = schematicTag.getShort("Height");
-        int zSize = schematicTag.getShort("Length");
-        Schematic.Builder builder = new Schematic.Builder(file, schematicTag.getInt("DataVersion"), xSize, ySize, zSize);
-        byte[] blockData = schematicTag.getByteArray("BlockData");
-        VarIntIterator blocks = new VarIntIterator(blockData);
-        for (int y = 0; y < ySize; y++)
-            for (int z = 0; z < zSize; z++)
-                for (int x = 0; x < xSize; x++)
-                    builder.setBlockAt(x, y, z, palette[blocks.next()]);
-        ListTag blockEntitiesTag = schematicTag.getList("BlockEntities");
-        for (Tag value : blockEntitiesTag) {
-            CompoundTag blockEntity = (CompoundTag) value;
-            int[] pos = blockEntity.getIntArray("Pos");
-            builder.addBlockEntity(pos[0], pos[1], pos[2], blockEntity);
-        }
-        return builder.build();
+    /**
+     * Decodes VarInt palette indices in y-z-x order. Input can be fed in chunks, and VarInts may span chunks. Indices
+     * are decoded a row at a time into a reused buffer and translated to palette ids in bulk.
+     */
+    private static class BlockDataDecoder {
+        private final Schematic.Builder builder;
+        private final int[] ids;
+        private final int xSize;
+        private final int ySize;
+        private final int zSize;
+        private final VarInts.Decoder decoder = new VarInts.Decoder();
+        private final int[] row;
+        private int x;
+        private int y;
+        private int z;
+
+        private BlockDataDecoder(Schematic.Builder builder, int[] ids, int xSize, int ySize, int zSize) {
+            this.builder = builder;
+            this.ids = ids;
+            this.xSize = xSize;
+            this.ySize = ySize;
+            this.zSize = zSize;
+            this.row = new int[Math.max(xSize, 1)];
+            if (xSize == 0 || zSize == 0) y = ySize;
+        }
+
+        private void accept(byte[] data, int offset, int length) {
+            int end = offset + length;
+            while (offset < end) {
+                if (y >= ySize) {
+                    // Trailing values past the end of the schematic are decoded and ignored
+                    decoder.decode(data, offset, end, row, 0, row.length);
+                    offset = decoder.position();
+                    continue;
+                }
+                int count = decoder.decode(data, offset, end, row, x, xSize - x);
+                offset = decoder.position();
+                int invalid = PackedInts.translate(row, x, count, ids);
+                if (invalid != -1) throw new ConversionException("Invalid palette index: " + row[invalid]);
+                for (int i = x; i < x + count; i++) builder.setBlockIdAt(i, y, z, row[i]);
+                x += count;
+                if (x == xSize) {
+                    x = 0;
+                    if (++z == zSize) {
+                        z = 0;
+                        y++;
+                    }
+                }
+            }
+        }
     }
 
     @Override
-    public void write(File file, Schematic schematic) throws IOException {
-        CompoundTag schematicTag = new CompoundTag();
+    public void write(OutputStream out, Schematic schematic) throws IOException {
         int[] size = schematic.getSize();
-        schematicTag.put("Version", new IntTag(3));
-        schematicTag.put("Width", new ShortTag((short) size[0]));
-        schematicTag.put("Height", new ShortTag((short) size[1]));
-        schematicTag.put("Length", new ShortTag((short) size[2]));
-        CompoundTag blocksTag = new CompoundTag();
+        int maxSize = 0xFFFF;
+        if (size[0] > maxSize || size[1] > maxSize || size[2] > maxSize)
+            throw new ConversionException("Sponge schematics only support schematics of up to " + maxSize
+                    + " blocks along each axis");
         List<String> palette = new ArrayList<>(schematic.getPalette());
-        byte[] blockData = new byte[size[0] * size[1] * size[2]];
-        int index = 0;
+        // Empty positions are written as air, which is added to the palette if it is not already there
+        int airIndex = palette.indexOf("minecraft:air");
+        if (airIndex == -1) airIndex = palette.size();
+        // The block data is streamed, so its encoded length and whether it needs air are worked out first
+        int[] row = new int[size[0]];
+        long length = 0;
+        boolean usesAir = false;
         for (int y = 0; y < size[1]; y++) {
             for (int z = 0; z < size[2]; z++) {
-                for (int x = 0; x < size[0]; x++) {
-                    int blockIndex = schematic.getPaletteBlock(x, y, z);
-                    if (blockIndex == -1) {
-                        if (!palette.contains("minecraft:air")) palette.add("minecraft:air");
-                        blockIndex = palette.indexOf("minecraft:air");
-                    }
-                    blockData[index++] = (byte) blockIndex;
-                }
+                usesAir |= fillRow(schematic, y, z, row, airIndex);
+                length += VarInts.size(row, 0, row.length);
+            }
+        }
+        if (length > Integer.MAX_VALUE)
+            throw new ConversionException("Block data is too large for a Sponge schematic: " + length + " bytes");
+        if (usesAir && airIndex == palette.size()) palette.add("minecraft:air");
+
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out);
+        NbtWriter writer = new NbtWriter(new DataOutputStream(gzip));
+        writer.beginCompound();
+        writer.name("Schematic");
+        writer.beginCompound();
+        writer.name("Version");
+        writer.writeInt(3);
+        writer.name("DataVersion");
+        writer.writeInt(schematic.getDataVersion());
+        writer.name("Width");
+        writer.writeShort((short) size[0]);
+        writer.name("Height");
+        writer.writeShort((short) size[1]);
+        writer.name("Length");
+        writer.writeShort((short) size[2]);
+        writer.name("Blocks");
+        writer.beginCompound();
+        writer.name("Palette");
+        writer.beginCompound();
+        for (int i = 0; i < palette.size(); i++) {
+            writer.name(palette.get(i));
+            writer.writeInt(i);
+        }
+        writer.endCompound();
+        writer.name("Data");
+        writer.beginArray(Tag.TAG_BYTE_ARRAY, (int) length);
+        byte[] encoded = new byte[row.length * 5];
+        for (int y = 0; y < size[1]; y++) {
+            for (int z = 0; z < size[2]; z++) {
+                fillRow(schematic, y, z, row, airIndex);
+                writer.writeBytes(encoded, 0, VarInts.encode(row, 0, row.length, encoded, 0));
+            }
+        }
+        writer.endArray();
+        writer.name("BlockEntities");
+        writer.beginList(Tag.TAG_COMPOUND, 0);
+        writer.endList();
+        writer.endCompound();
+        writer.name("Entities");
+        List<Entity> entities = schematic.getEntities();
+        writer.beginList(Tag.TAG_COMPOUND, entities.size());
+        for (Entity entity : entities) {
+            writer.beginCompound();
+            writer.name("Pos");
+            writer.beginList(Tag.TAG_DOUBLE, 3);
+            writer.writeDouble(entity.x());
+            writer.writeDouble(entity.y());
+            writer.writeDouble(entity.z());
+            writer.endList();
+            writer.name("Id");
+            writer.writeString(entity.id());
+            writer.name("Data");
+            writer.writeTag(entity.nbt());
+            writer.endCompound();
+        }
+        writer.endList();
+        writer.endCompound();
+        writer.endCompound();
+        writer.flush();
+        gzip.finish();
+    }
+
+    private static boolean fillRow(Schematic schematic, int y, int z, int[] row, int airIndex) {
+        boolean usesAir = false;
+        for (int x = 0; x < row.length; x++) {
+            int blockIndex = schematic.getPaletteBlock(x, y, z);
+            if (blockIndex == -1) {
+                blockIndex = airIndex;
+                usesAir = true;
             }
+            row[x] = blockIndex;
         }
-        blocksTag.put("Data", new ByteArrayTag(blockData));
-        CompoundTag paletteTag = new CompoundTag();
-        for (int i = 0; i < palette.size(); i++) paletteTag.put(palette.get(i), new IntTag(i));
-        blocksTag.put("Palette", paletteTag);
-        ListTag blockEntitiesTag = new ListTag(Tag.TAG_COMPOUND);
-        schematic.getBlockEntities().forEach((pos, entity) -> {
-            if (!entity.contains("Pos", Tag.TAG_INT_ARRAY))
-                entity.put("Pos", new IntArrayTag(new int[]{pos.x(), pos.y(), pos.z()}));
-        });
-        blocksTag.put("BlockEntities", blockEntitiesTag);
-        ListTag entitiesTag = new ListTag(Tag.TAG_COMPOUND);
-        for (Entity entity : schematic.getEntities()) {
-            CompoundTag entityTag = new CompoundTag();
-            ListTag posTag = new ListTag(Tag.TAG_DOUBLE);
-            posTag.add(new DoubleTag(entity.x()));
-            posTag.add(new DoubleTag(entity.y()));
-            posTag.add(new DoubleTag(entity.z()));
-            entityTag.put("Pos", posTag);
-            entityTag.put("Id", new StringTag(entity.id()));
-            entityTag.put("Data", entity.nbt());
-            entitiesTag.add(entityTag);
-        }
-        schematicTag.put("Blocks", blocksTag);
-        schematicTag.put("Entities", entitiesTag);
-        schematicTag.put("DataVersion", new IntTag(schematic.getDataVersion()));
-        CompoundTag tag = new CompoundTag();
-        tag.put("Schematic", schematicTag);
-        NbtUtil.write(tag, file);
+        return usesAir;
     }
 
     @Override
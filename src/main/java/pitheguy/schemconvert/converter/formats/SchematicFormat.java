@@ -2,13 +2,36 @@ package pitheguy.schemconvert.converter.formats;
 
 import pitheguy.schemconvert.converter.Schematic;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 
 public interface SchematicFormat {
     Schematic read(File file) throws IOException;
 
-    void write(File file, Schematic schematic) throws IOException;
+    /**
+     * Reads a schematic from the contents of a file that have already been loaded. {@code file} is only recorded as
+     * the schematic's source.
+     */
+    Schematic read(File file, byte[] data) throws IOException;
+
+    /**
+     * Writes a schematic to a stream, which is flushed but left open.
+     */
+    void write(OutputStream out, Schematic schematic) throws IOException;
+
+    default void write(File file, Schematic schematic) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            write(out, schematic);
+        }
+    }
 
     String getExtension();
+
+    /**
+     * Describes what the output written for a schematic takes from its source file besides the schematic itself, such
+     * as the file's name. Outputs are only reused from a cache for sources with the same description. Returns null if
+     * the output can't be reused at all.
+     */
+    default String describeSource(File source) throws IOException {
+        return "";
+    }
 }
@@ -1,5 +1,13 @@
 package pitheguy.schemconvert.converter.formats;
 
+import pitheguy.schemconvert.nbt.NbtEncoding;
+import pitheguy.schemconvert.nbt.NbtException;
+import pitheguy.schemconvert.nbt.NbtReader;
+import pitheguy.schemconvert.nbt.tags.Tag;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
 public class SchematicFormats {
     public static final SchematicFormat NBT = new NbtSchematicFormat();
     public static final SchemSchematicFormat SCHEM = new SchemSchematicFormat();
@@ -7,6 +15,9 @@ public class SchematicFormats {
     public static final AxiomSchematicFormat AXIOM = new AxiomSchematicFormat();
     public static final ClassicSchematicFormat CLASSIC = new ClassicSchematicFormat();
 
+    // Number of root entries looked at before giving up on recognizing a file
+    private static final int MAX_SCANNED_KEYS = 16;
+
     public static SchematicFormat formatFromExtension(String extension) {
         return switch (extension) {
             case ".nbt" -> NBT;
@@ -17,4 +28,58 @@ public class SchematicFormats {
             default -> throw new IllegalArgumentException("Unknown extension: " + extension);
         };
     }
+
+    /**
+     * Recognizes the format of a file from its contents, or returns null if it can't be recognized. Only the first
+     * bytes and the first few root entries are read; values that don't identify a format are skipped without being
+     * decoded.
+     */
+    public static SchematicFormat detect(File file) throws IOException {
+        byte[] header = new byte[Integer.BYTES];
+        int read;
+        try (InputStream in = new FileInputStream(file)) {
+            read = in.readNBytes(header, 0, header.length);
+        }
+        return detect(header, read, new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    /**
+     * Recognizes the format of a file whose contents have already been loaded, like {@link #detect(File)}.
+     */
+    public static SchematicFormat detect(byte[] data) throws IOException {
+        return detect(data, data.length, new ByteArrayInputStream(data));
+    }
+
+    private static SchematicFormat detect(byte[] header, int length, InputStream raw) throws IOException {
+        if (length >= Integer.BYTES && ByteBuffer.wrap(header).getInt() == AxiomSchematicFormat.MAGIC) {
+            raw.close();
+            return AXIOM;
+        }
+        NbtEncoding encoding = NbtEncoding.detect(header, length);
+        try (NbtReader reader = new NbtReader(new DataInputStream(encoding.open(raw)))) {
+            reader.beginCompound();
+            for (int i = 0; i < MAX_SCANNED_KEYS && reader.hasNext(); i++) {
+                SchematicFormat format = formatFromRootEntry(reader.nextName(), reader.peek());
+                if (format != null) return format;
+                reader.skipValue();
+            }
+        } catch (IOException | NbtException e) {
+            return null;
+        } finally {
+            raw.close();
+        }
+        return null;
+    }
+
+    private static SchematicFormat formatFromRootEntry(String key, byte type) {
+        return switch (key) {
+            case "Regions" -> LITEMATIC;
+            case "Schematic" -> type == Tag.TAG_COMPOUND ? SCHEM : null;
+            case "BlockData", "Palette", "PaletteMax" -> SCHEM;
+            case "Blocks" -> type == Tag.TAG_BYTE_ARRAY ? CLASSIC : null;
+            case "Materials", "AddBlocks" -> CLASSIC;
+            case "blocks", "palette", "palettes", "size" -> type == Tag.TAG_LIST ? NBT : null;
+            default -> null;
+        };
+    }
 }
@@ -0,0 +1,50 @@
+package pitheguy.schemconvert.converter.storage;
+
+/**
+ * Stores palette indices for every voxel of a schematic. An index of -1 means there is no block at that position.
+ */
+public interface BlockStorage {
+    /**
+     * Volume above which new schematics use sectioned storage instead of a single dense array.
+     */
+    long DENSE_VOLUME_LIMIT = 1 << 24;
+    /**
+     * Volume above which new schematics are stored off-heap in a memory-mapped file. Can be set with the
+     * {@code schemconvert.mappedVolumeThreshold} system property.
+     */
+    long MAPPED_VOLUME_THRESHOLD = Long.getLong("schemconvert.mappedVolumeThreshold", Integer.MAX_VALUE);
+    /**
+     * Fraction of the maximum heap that a schematic may need (at one byte per block) before it is stored off-heap.
+     * Can be set with the {@code schemconvert.mappedHeapFraction} system property.
+     */
+    double MAPPED_HEAP_FRACTION = Double.parseDouble(System.getProperty("schemconvert.mappedHeapFraction", "0.5"));
+
+    static BlockStorage create(int xSize, int ySize, int zSize) {
+        long volume = (long) xSize * ySize * zSize;
+        if (volume > MAPPED_VOLUME_THRESHOLD || volume > Runtime.getRuntime().maxMemory() * MAPPED_HEAP_FRACTION)
+            return new MappedBlockStorage(xSize, ySize, zSize);
+        if (volume > DENSE_VOLUME_LIMIT) return new SectionedBlockStorage(xSize, ySize, zSize);
+        return new DenseBlockStorage(xSize, ySize, zSize);
+    }
+
+    int get(int x, int y, int z);
+
+    void set(int x, int y, int z, int id);
+
+    int getXSize();
+
+    int getYSize();
+
+    int getZSize();
+
+    /**
+     * Creates an empty storage of the same kind with the given size.
+     */
+    BlockStorage createEmpty(int xSize, int ySize, int zSize);
+
+    /**
+     * Called once all blocks have been set, so implementations can shrink their internal representation.
+     */
+    default void compact() {
+    }
+}
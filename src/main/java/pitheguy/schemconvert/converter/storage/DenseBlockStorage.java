@@ -0,0 +1,105 @@
+package pitheguy.schemconvert.converter.storage;
+
+import pitheguy.schemconvert.converter.ConversionException;
+
+/**
+ * Flat array storage laid out in y-z-x order, matching the iteration order of the schematic formats. Values are
+ * stored offset by one so that a zeroed array means "no block". The backing array starts out as a byte array and is
+ * widened to short or int once the palette outgrows it.
+ */
+public class DenseBlockStorage implements BlockStorage {
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+    private byte[] bytes;
+    private short[] shorts;
+    private int[] ints;
+
+    public DenseBlockStorage(int xSize, int ySize, int zSize) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.bytes = new byte[volume(xSize, ySize, zSize)];
+    }
+
+    private static int volume(int xSize, int ySize, int zSize) {
+        try {
+            return Math.multiplyExact(Math.multiplyExact(xSize, ySize), zSize);
+        } catch (ArithmeticException e) {
+            throw new ConversionException("Schematic is too large: " + xSize + "x" + ySize + "x" + zSize);
+        }
+    }
+
+    private int index(int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0 || x >= xSize || y >= ySize || z >= zSize)
+            throw new IndexOutOfBoundsException("Position " + x + ", " + y + ", " + z + " is outside of the schematic");
+        return (y * zSize + z) * xSize + x;
+    }
+
+    @Override
+    public int get(int x, int y, int z) {
+        return get(index(x, y, z));
+    }
+
+    public int get(int index) {
+        if (bytes != null) return (bytes[index] & 0xFF) - 1;
+        if (shorts != null) return (shorts[index] & 0xFFFF) - 1;
+        return ints[index] - 1;
+    }
+
+    @Override
+    public void set(int x, int y, int z, int id) {
+        set(index(x, y, z), id);
+    }
+
+    public void set(int index, int id) {
+        int value = id + 1;
+        if (bytes != null) {
+            if (value <= 0xFF) {
+                bytes[index] = (byte) value;
+                return;
+            }
+            widen();
+        }
+        if (shorts != null) {
+            if (value <= 0xFFFF) {
+                shorts[index] = (short) value;
+                return;
+            }
+            widen();
+        }
+        ints[index] = value;
+    }
+
+    private void widen() {
+        if (bytes != null) {
+            shorts = new short[bytes.length];
+            for (int i = 0; i < bytes.length; i++) shorts[i] = (short) (bytes[i] & 0xFF);
+            bytes = null;
+        } else if (shorts != null) {
+            ints = new int[shorts.length];
+            for (int i = 0; i < shorts.length; i++) ints[i] = shorts[i] & 0xFFFF;
+            shorts = null;
+        }
+    }
+
+    @Override
+    public BlockStorage createEmpty(int xSize, int ySize, int zSize) {
+        return new DenseBlockStorage(xSize, ySize, zSize);
+    }
+
+    @Override
+    public int getXSize() {
+        return xSize;
+    }
+
+    @Override
+    public int getYSize() {
+        return ySize;
+    }
+
+    @Override
+    public int getZSize() {
+        return zSize;
+    }
+}
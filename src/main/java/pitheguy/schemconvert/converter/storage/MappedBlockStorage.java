@@ -0,0 +1,121 @@
+package pitheguy.schemconvert.converter.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Off-heap storage backed by a memory-mapped temporary file, for schematics that are too large to keep on the heap.
+ * Uses the same y-z-x layout and offset-by-one encoding as {@link DenseBlockStorage}. Values are stored as shorts and
+ * widened to ints if the palette outgrows them. The temporary file is deleted as soon as it is no longer mapped.
+ */
+public class MappedBlockStorage implements BlockStorage {
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+    private final long volume;
+    private int bytesPerValue;
+    private MappedByteBuffer[] chunks;
+
+    public MappedBlockStorage(int xSize, int ySize, int zSize) {
+        this(xSize, ySize, zSize, Short.BYTES);
+    }
+
+    private MappedBlockStorage(int xSize, int ySize, int zSize, int bytesPerValue) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.volume = (long) xSize * ySize * zSize;
+        this.bytesPerValue = bytesPerValue;
+        this.chunks = map(volume * bytesPerValue);
+    }
+
+    private static MappedByteBuffer[] map(long length) {
+        try {
+            Path file = Files.createTempFile("schemconvert", ".blocks");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                MappedByteBuffer[] chunks = new MappedByteBuffer[(int) Math.max(1, Math.ceilDiv(length, CHUNK_SIZE))];
+                for (int i = 0; i < chunks.length; i++) {
+                    long start = i * CHUNK_SIZE;
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(CHUNK_SIZE, length - start));
+                }
+                return chunks;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create block storage file", e);
+        }
+    }
+
+    private long index(int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0 || x >= xSize || y >= ySize || z >= zSize)
+            throw new IndexOutOfBoundsException("Position " + x + ", " + y + ", " + z + " is outside of the schematic");
+        return ((long) y * zSize + z) * xSize + x;
+    }
+
+    @Override
+    public int get(int x, int y, int z) {
+        return get(index(x, y, z));
+    }
+
+    private int get(long index) {
+        long offset = index * bytesPerValue;
+        MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+        int position = (int) (offset & CHUNK_MASK);
+        if (bytesPerValue == Short.BYTES) return (chunk.getShort(position) & 0xFFFF) - 1;
+        return chunk.getInt(position) - 1;
+    }
+
+    @Override
+    public void set(int x, int y, int z, int id) {
+        set(index(x, y, z), id);
+    }
+
+    private void set(long index, int id) {
+        int value = id + 1;
+        if (bytesPerValue == Short.BYTES && value > 0xFFFF) widen();
+        long offset = index * bytesPerValue;
+        MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+        int position = (int) (offset & CHUNK_MASK);
+        if (bytesPerValue == Short.BYTES) chunk.putShort(position, (short) value);
+        else chunk.putInt(position, value);
+    }
+
+    private void widen() {
+        MappedBlockStorage wide = new MappedBlockStorage(xSize, ySize, zSize, Integer.BYTES);
+        for (long i = 0; i < volume; i++) {
+            int id = get(i);
+            if (id != -1) wide.set(i, id);
+        }
+        bytesPerValue = Integer.BYTES;
+        chunks = wide.chunks;
+    }
+
+    @Override
+    public BlockStorage createEmpty(int xSize, int ySize, int zSize) {
+        return new MappedBlockStorage(xSize, ySize, zSize);
+    }
+
+    @Override
+    public int getXSize() {
+        return xSize;
+    }
+
+    @Override
+    public int getYSize() {
+        return ySize;
+    }
+
+    @Override
+    public int getZSize() {
+        return zSize;
+    }
+}
@@ -0,0 +1,194 @@
+package pitheguy.schemconvert.converter.storage;
+
+import java.util.Arrays;
+
+/**
+ * Sparse storage that splits the schematic into 16x16x16 sections. Missing sections contain no blocks, uniform
+ * sections only store a single id, and mixed sections store indices into a small section-local palette.
+ */
+public class SectionedBlockStorage implements BlockStorage {
+    public static final int SECTION_SIZE = 16;
+    private static final int SECTION_VOLUME = SECTION_SIZE * SECTION_SIZE * SECTION_SIZE;
+
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+    private final int xSections;
+    private final int ySections;
+    private final int zSections;
+    private final Section[] sections;
+
+    public SectionedBlockStorage(int xSize, int ySize, int zSize) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.xSections = Math.ceilDiv(xSize, SECTION_SIZE);
+        this.ySections = Math.ceilDiv(ySize, SECTION_SIZE);
+        this.zSections = Math.ceilDiv(zSize, SECTION_SIZE);
+        this.sections = new Section[Math.multiplyExact(Math.multiplyExact(xSections, ySections), zSections)];
+    }
+
+    private void checkBounds(int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0 || x >= xSize || y >= ySize || z >= zSize)
+            throw new IndexOutOfBoundsException("Position " + x + ", " + y + ", " + z + " is outside of the schematic");
+    }
+
+    private int sectionIndex(int x, int y, int z) {
+        return ((y >> 4) * zSections + (z >> 4)) * xSections + (x >> 4);
+    }
+
+    private static int indexInSection(int x, int y, int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    @Override
+    public int get(int x, int y, int z) {
+        checkBounds(x, y, z);
+        Section section = sections[sectionIndex(x, y, z)];
+        if (section == null) return -1;
+        return section.get(indexInSection(x, y, z));
+    }
+
+    @Override
+    public void set(int x, int y, int z, int id) {
+        checkBounds(x, y, z);
+        int sectionIndex = sectionIndex(x, y, z);
+        Section section = sections[sectionIndex];
+        if (section == null) {
+            if (id == -1) return;
+            section = sections[sectionIndex] = new Section(-1);
+        }
+        section.set(indexInSection(x, y, z), id);
+    }
+
+    public int getXSections() {
+        return xSections;
+    }
+
+    public int getYSections() {
+        return ySections;
+    }
+
+    public int getZSections() {
+        return zSections;
+    }
+
+    /**
+     * Returns whether the section at the given section coordinates contains no blocks at all.
+     */
+    public boolean isSectionEmpty(int sectionX, int sectionY, int sectionZ) {
+        Section section = sections[(sectionY * zSections + sectionZ) * xSections + sectionX];
+        return section == null || section.palette == null && section.uniform == -1;
+    }
+
+    /**
+     * Sets every block in the section at the given section coordinates to the same id.
+     */
+    public void fillSection(int sectionX, int sectionY, int sectionZ, int id) {
+        sections[(sectionY * zSections + sectionZ) * xSections + sectionX] = id == -1 ? null : new Section(id);
+    }
+
+    /**
+     * Collapses sections that only contain a single id and drops sections that contain no blocks.
+     */
+    @Override
+    public void compact() {
+        for (int i = 0; i < sections.length; i++) {
+            Section section = sections[i];
+            if (section == null) continue;
+            section.compact();
+            if (section.palette == null && section.uniform == -1) sections[i] = null;
+        }
+    }
+
+    @Override
+    public BlockStorage createEmpty(int xSize, int ySize, int zSize) {
+        return new SectionedBlockStorage(xSize, ySize, zSize);
+    }
+
+    @Override
+    public int getXSize() {
+        return xSize;
+    }
+
+    @Override
+    public int getYSize() {
+        return ySize;
+    }
+
+    @Override
+    public int getZSize() {
+        return zSize;
+    }
+
+    private static class Section {
+        private int uniform;
+        private int[] palette;
+        private int paletteSize;
+        private byte[] bytes;
+        private short[] shorts;
+        private int lastId;
+        private int lastLocal;
+
+        private Section(int uniform) {
+            this.uniform = uniform;
+        }
+
+        private int get(int index) {
+            if (palette == null) return uniform;
+            return palette[bytes != null ? bytes[index] & 0xFF : shorts[index]];
+        }
+
+        private void set(int index, int id) {
+            if (palette == null) {
+                if (id == uniform) return;
+                palette = new int[] { uniform, 0, 0, 0 };
+                paletteSize = 1;
+                bytes = new byte[SECTION_VOLUME];
+                lastId = uniform;
+                lastLocal = 0;
+            }
+            int local = localIndex(id);
+            if (bytes != null) {
+                if (local <= 0xFF) {
+                    bytes[index] = (byte) local;
+                    return;
+                }
+                shorts = new short[SECTION_VOLUME];
+                for (int i = 0; i < SECTION_VOLUME; i++) shorts[i] = (short) (bytes[i] & 0xFF);
+                bytes = null;
+            }
+            shorts[index] = (short) local;
+        }
+
+        private int localIndex(int id) {
+            if (id == lastId) return lastLocal;
+            int local = -1;
+            for (int i = 0; i < paletteSize; i++) {
+                if (palette[i] == id) {
+                    local = i;
+                    break;
+                }
+            }
+            if (local == -1) {
+                if (paletteSize == palette.length) palette = Arrays.copyOf(palette, paletteSize * 2);
+                local = paletteSize++;
+                palette[local] = id;
+            }
+            lastId = id;
+            lastLocal = local;
+            return local;
+        }
+
+        private void compact() {
+            if (palette == null) return;
+            int first = get(0);
+            for (int i = 1; i < SECTION_VOLUME; i++)
+                if (get(i) != first) return;
+            uniform = first;
+            palette = null;
+            bytes = null;
+            shorts = null;
+        }
+    }
+}
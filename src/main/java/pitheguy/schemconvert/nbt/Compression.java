@@ -0,0 +1,48 @@
+package pitheguy.schemconvert.nbt;
+
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+/**
+ * Settings for gzip output. Output is split into blocks of {@code blockSize} bytes which are compressed in parallel.
+ * The default settings can be chosen with the {@code schemconvert.compression} system property ({@code fast},
+ * {@code default} or {@code best}) and the worker count with {@code schemconvert.compressionThreads}.
+ */
+public record Compression(int level, int strategy, int blockSize) {
+    public static final Compression FAST = new Compression(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, 1 << 20);
+    public static final Compression DEFAULT = new Compression(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, 1 << 20);
+    public static final Compression BEST = new Compression(Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY, 1 << 20);
+
+    private static final ForkJoinPool EXECUTOR = new ForkJoinPool(Integer.getInteger("schemconvert.compressionThreads",
+            Runtime.getRuntime().availableProcessors()));
+    private static volatile Compression current = byName(System.getProperty("schemconvert.compression", "default"));
+
+    public Compression {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Block size must be positive");
+    }
+
+    public static Compression byName(String name) {
+        return switch (name.toLowerCase(Locale.ROOT)) {
+            case "fast" -> FAST;
+            case "default" -> DEFAULT;
+            case "best" -> BEST;
+            default -> throw new IllegalArgumentException("Unknown compression: " + name);
+        };
+    }
+
+    public static Compression get() {
+        return current;
+    }
+
+    public static void set(Compression compression) {
+        current = compression;
+    }
+
+    static ForkJoinPool executor() {
+        return EXECUTOR;
+    }
+}
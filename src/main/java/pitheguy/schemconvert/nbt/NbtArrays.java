@@ -0,0 +1,71 @@
+package pitheguy.schemconvert.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves int and long arrays to and from a stream in bulk. Elements are copied through a reused big-endian scratch
+ * buffer instead of being read or written one at a time.
+ */
+public class NbtArrays {
+    private static final int SCRATCH_SIZE = 1 << 16;
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(SCRATCH_SIZE));
+
+    public static void readInts(DataInput in, int[] dest, int offset, int length) throws IOException {
+        ByteBuffer scratch = SCRATCH.get();
+        int perChunk = SCRATCH_SIZE / Integer.BYTES;
+        while (length > 0) {
+            int count = Math.min(length, perChunk);
+            in.readFully(scratch.array(), 0, count * Integer.BYTES);
+            scratch.clear();
+            scratch.asIntBuffer().get(dest, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    public static void readLongs(DataInput in, long[] dest, int offset, int length) throws IOException {
+        ByteBuffer scratch = SCRATCH.get();
+        int perChunk = SCRATCH_SIZE / Long.BYTES;
+        while (length > 0) {
+            int count = Math.min(length, perChunk);
+            in.readFully(scratch.array(), 0, count * Long.BYTES);
+            scratch.clear();
+            scratch.asLongBuffer().get(dest, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    public static void writeInts(DataOutput out, int[] values) throws IOException {
+        writeInts(out, values, 0, values.length);
+    }
+
+    public static void writeInts(DataOutput out, int[] values, int offset, int length) throws IOException {
+        ByteBuffer scratch = SCRATCH.get();
+        int perChunk = SCRATCH_SIZE / Integer.BYTES;
+        for (int end = offset + length; offset < end; offset += perChunk) {
+            int count = Math.min(end - offset, perChunk);
+            scratch.clear();
+            scratch.asIntBuffer().put(values, offset, count);
+            out.write(scratch.array(), 0, count * Integer.BYTES);
+        }
+    }
+
+    public static void writeLongs(DataOutput out, long[] values) throws IOException {
+        writeLongs(out, values, 0, values.length);
+    }
+
+    public static void writeLongs(DataOutput out, long[] values, int offset, int length) throws IOException {
+        ByteBuffer scratch = SCRATCH.get();
+        int perChunk = SCRATCH_SIZE / Long.BYTES;
+        for (int end = offset + length; offset < end; offset += perChunk) {
+            int count = Math.min(end - offset, perChunk);
+            scratch.clear();
+            scratch.asLongBuffer().put(values, offset, count);
+            out.write(scratch.array(), 0, count * Long.BYTES);
+        }
+    }
+}
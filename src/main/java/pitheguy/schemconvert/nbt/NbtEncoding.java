@@ -0,0 +1,44 @@
+package pitheguy.schemconvert.nbt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * How an NBT file is compressed, as told by its first two bytes.
+ */
+public enum NbtEncoding {
+    GZIP,
+    ZLIB,
+    NONE;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Detects the encoding from the first {@code length} bytes of a file. Data that isn't recognized is assumed to be
+     * gzip, which was the only encoding supported before and gives the same error for invalid files.
+     */
+    public static NbtEncoding detect(byte[] header, int length) {
+        if (length < 2) return GZIP;
+        int b0 = header[0] & 0xFF;
+        int b1 = header[1] & 0xFF;
+        if (b0 == 0x1F && b1 == 0x8B) return GZIP;
+        // zlib: deflate method in the low nibble and a header checksum that is a multiple of 31
+        if ((b0 & 0x0F) == 8 && (b0 << 8 | b1) % 31 == 0) return ZLIB;
+        // Uncompressed NBT starts with the root tag type, which is almost always a compound
+        if (b0 == 0x0A) return NONE;
+        return GZIP;
+    }
+
+    /**
+     * Wraps a raw stream to decode it with this encoding.
+     */
+    public InputStream open(InputStream in) throws IOException {
+        return switch (this) {
+            case GZIP -> new GZIPInputStream(in, BUFFER_SIZE);
+            case ZLIB -> new InflaterInputStream(in);
+            case NONE -> in;
+        };
+    }
+}
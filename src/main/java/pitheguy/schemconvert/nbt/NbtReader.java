@@ -0,0 +1,330 @@
+package pitheguy.schemconvert.nbt;
+
+import pitheguy.schemconvert.nbt.tags.CompoundTag;
+import pitheguy.schemconvert.nbt.tags.Tag;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pull-style NBT reader that walks the input one value at a time instead of building a full tag tree. Compounds and
+ * lists are entered and left explicitly, primitives are returned directly, and arrays can be read in chunks. Any value
+ * that isn't needed can be skipped, and {@link #nextTag()} materializes a single subtree when the tree API is easier.
+ * <p>
+ * The root tag behaves like a compound with a single entry, so reading a file starts with {@link #nextName()} or
+ * {@link #beginCompound()}.
+ */
+public class NbtReader implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final DataInputStream in;
+    private final Deque<Scope> scopes = new ArrayDeque<>();
+    private byte peeked = -1;
+    private boolean nameRead;
+    private byte arrayType = -1;
+    private int arrayRemaining;
+
+    public NbtReader(DataInputStream in) {
+        this.in = in;
+        scopes.push(new Scope(true, Tag.TAG_END, 1));
+    }
+
+    public static NbtReader open(File file) throws IOException {
+        return new NbtReader(new DataInputStream(new BufferedInputStream(NbtUtil.open(file), BUFFER_SIZE)));
+    }
+
+    public static NbtReader open(byte[] data) throws IOException {
+        return new NbtReader(new DataInputStream(new BufferedInputStream(NbtUtil.open(data), BUFFER_SIZE)));
+    }
+
+    /**
+     * Returns the type of the next value in the current compound or list, or {@link Tag#TAG_END} if there are none left.
+     */
+    public byte peek() throws IOException {
+        if (arrayType != -1)
+            throw new NbtException("Array must be ended before reading further values");
+        if (peeked != -1)
+            return peeked;
+        Scope scope = scopes.peek();
+        if (scope.compound) {
+            if (scope.remaining == 0)
+                return Tag.TAG_END;
+            peeked = in.readByte();
+            nameRead = false;
+            if (peeked == Tag.TAG_END && scope.remaining > 0)
+                throw new NbtException("Root tag can't be an end tag");
+        } else {
+            peeked = scope.remaining > 0 ? scope.elementType : Tag.TAG_END;
+        }
+        return peeked;
+    }
+
+    public boolean hasNext() throws IOException {
+        return peek() != Tag.TAG_END;
+    }
+
+    /**
+     * Reads the name of the next entry in the current compound.
+     */
+    public String nextName() throws IOException {
+        if (!scopes.peek().compound)
+            throw new NbtException("Only compound entries have names");
+        if (!hasNext())
+            throw new NbtException("No more entries in compound");
+        if (nameRead)
+            throw new NbtException("Name has already been read");
+        nameRead = true;
+        return in.readUTF();
+    }
+
+    private void consume(byte type) throws IOException {
+        byte actual = peek();
+        if (actual == Tag.TAG_END)
+            throw new NbtException("No more values in " + (scopes.peek().compound ? "compound" : "list"));
+        if (actual != type)
+            throw new NbtException("Type mismatch: expected " + type + " but found " + actual);
+        Scope scope = scopes.peek();
+        if (scope.compound && !nameRead)
+            in.skipNBytes(in.readUnsignedShort());
+        if (scope.remaining > 0)
+            scope.remaining--;
+        peeked = -1;
+    }
+
+    public void beginCompound() throws IOException {
+        consume(Tag.TAG_COMPOUND);
+        scopes.push(new Scope(true, Tag.TAG_END, -1));
+    }
+
+    /**
+     * Leaves the current compound, skipping any entries that haven't been read.
+     */
+    public void endCompound() throws IOException {
+        if (!scopes.peek().compound || scopes.size() == 1)
+            throw new NbtException("Not in a compound");
+        while (hasNext())
+            skipValue();
+        peeked = -1;
+        scopes.pop();
+    }
+
+    /**
+     * Enters a list and returns its size.
+     */
+    public int beginList() throws IOException {
+        consume(Tag.TAG_LIST);
+        byte elementType = in.readByte();
+        int size = in.readInt();
+        scopes.push(new Scope(false, elementType, Math.max(size, 0)));
+        return size;
+    }
+
+    /**
+     * Leaves the current list, skipping any elements that haven't been read.
+     */
+    public void endList() throws IOException {
+        if (scopes.peek().compound)
+            throw new NbtException("Not in a list");
+        while (hasNext())
+            skipValue();
+        peeked = -1;
+        scopes.pop();
+    }
+
+    public byte nextByte() throws IOException {
+        consume(Tag.TAG_BYTE);
+        return in.readByte();
+    }
+
+    public short nextShort() throws IOException {
+        consume(Tag.TAG_SHORT);
+        return in.readShort();
+    }
+
+    public int nextInt() throws IOException {
+        consume(Tag.TAG_INT);
+        return in.readInt();
+    }
+
+    public long nextLong() throws IOException {
+        consume(Tag.TAG_LONG);
+        return in.readLong();
+    }
+
+    public float nextFloat() throws IOException {
+        consume(Tag.TAG_FLOAT);
+        return in.readFloat();
+    }
+
+    public double nextDouble() throws IOException {
+        consume(Tag.TAG_DOUBLE);
+        return in.readDouble();
+    }
+
+    public String nextString() throws IOException {
+        consume(Tag.TAG_STRING);
+        return in.readUTF();
+    }
+
+    /**
+     * Reads the next value as a tag, materializing its whole subtree.
+     */
+    public Tag nextTag() throws IOException {
+        byte type = peek();
+        consume(type);
+        return NbtUtil.readByType(type, in);
+    }
+
+    /**
+     * Reads the next value, which must be a compound, without decoding it. Its contents are copied into a buffer of
+     * their own and decoded on first access, so data that is only passed through to the output, such as block entity
+     * contents, is never materialized and doesn't keep anything else alive.
+     */
+    public CompoundTag nextLazyCompound() throws IOException {
+        consume(Tag.TAG_COMPOUND);
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        NbtUtil.copyByType(Tag.TAG_COMPOUND, in, new DataOutputStream(contents));
+        byte[] bytes = contents.toByteArray();
+        return CompoundTag.lazy(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Enters a byte, int or long array and returns its length. The contents are then read in chunks with
+     * {@link #readBytes}, {@link #readInts} or {@link #readLongs}.
+     */
+    public int beginArray() throws IOException {
+        byte type = peek();
+        if (type != Tag.TAG_BYTE_ARRAY && type != Tag.TAG_INT_ARRAY && type != Tag.TAG_LONG_ARRAY)
+            throw new NbtException("Type mismatch: expected an array but found " + type);
+        consume(type);
+        arrayType = type;
+        arrayRemaining = in.readInt();
+        if (arrayRemaining < 0)
+            throw new NbtException("Negative array length: " + arrayRemaining);
+        return arrayRemaining;
+    }
+
+    private int checkArrayRead(byte type, int length) {
+        if (arrayType != type)
+            throw new NbtException("Type mismatch: not in an array of type " + type);
+        return Math.min(length, arrayRemaining);
+    }
+
+    /**
+     * Reads up to {@code length} elements of the current byte array and returns the number read.
+     */
+    public int readBytes(byte[] dest, int offset, int length) throws IOException {
+        int count = checkArrayRead(Tag.TAG_BYTE_ARRAY, length);
+        in.readFully(dest, offset, count);
+        arrayRemaining -= count;
+        return count;
+    }
+
+    /**
+     * Reads up to {@code length} elements of the current int array and returns the number read.
+     */
+    public int readInts(int[] dest, int offset, int length) throws IOException {
+        int count = checkArrayRead(Tag.TAG_INT_ARRAY, length);
+        NbtArrays.readInts(in, dest, offset, count);
+        arrayRemaining -= count;
+        return count;
+    }
+
+    /**
+     * Reads up to {@code length} elements of the current long array and returns the number read.
+     */
+    public int readLongs(long[] dest, int offset, int length) throws IOException {
+        int count = checkArrayRead(Tag.TAG_LONG_ARRAY, length);
+        NbtArrays.readLongs(in, dest, offset, count);
+        arrayRemaining -= count;
+        return count;
+    }
+
+    /**
+     * Copies the remaining elements of the current array to {@code out} as they are stored, big-endian, and returns
+     * the number of bytes copied.
+     */
+    public long transferArray(OutputStream out) throws IOException {
+        if (arrayType == -1)
+            throw new NbtException("Not in an array");
+        long remaining = (long) arrayRemaining * elementSize(arrayType);
+        long total = remaining;
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, remaining)];
+        while (remaining > 0) {
+            int count = (int) Math.min(buffer.length, remaining);
+            in.readFully(buffer, 0, count);
+            out.write(buffer, 0, count);
+            remaining -= count;
+        }
+        arrayRemaining = 0;
+        return total;
+    }
+
+    /**
+     * Leaves the current array, skipping any elements that haven't been read.
+     */
+    public void endArray() throws IOException {
+        if (arrayType == -1)
+            throw new NbtException("Not in an array");
+        in.skipNBytes((long) arrayRemaining * elementSize(arrayType));
+        arrayType = -1;
+        arrayRemaining = 0;
+    }
+
+    public byte[] nextByteArray() throws IOException {
+        byte[] values = new byte[beginArray()];
+        readBytes(values, 0, values.length);
+        endArray();
+        return values;
+    }
+
+    public int[] nextIntArray() throws IOException {
+        int[] values = new int[beginArray()];
+        readInts(values, 0, values.length);
+        endArray();
+        return values;
+    }
+
+    public long[] nextLongArray() throws IOException {
+        long[] values = new long[beginArray()];
+        readLongs(values, 0, values.length);
+        endArray();
+        return values;
+    }
+
+    /**
+     * Skips the next value without decoding it.
+     */
+    public void skipValue() throws IOException {
+        byte type = peek();
+        consume(type);
+        NbtUtil.skipByType(type, in);
+    }
+
+    private static int elementSize(byte type) {
+        return switch (type) {
+            case Tag.TAG_BYTE_ARRAY -> 1;
+            case Tag.TAG_INT_ARRAY -> 4;
+            case Tag.TAG_LONG_ARRAY -> 8;
+            default -> throw new NbtException("Type " + type + " is not an array");
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static class Scope {
+        private final boolean compound;
+        private final byte elementType;
+        private int remaining;
+
+        private Scope(boolean compound, byte elementType, int remaining) {
+            this.compound = compound;
+            this.elementType = elementType;
+            this.remaining = remaining;
+        }
+    }
+}
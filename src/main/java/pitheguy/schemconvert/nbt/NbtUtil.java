@@ -3,8 +3,6 @@ package pitheguy.schemconvert.nbt;
 import pitheguy.schemconvert.nbt.tags.*;
 
 import java.io.*;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 public class NbtUtil {
     public static Tag readByType(byte type, DataInputStream in) throws IOException {
@@ -26,13 +24,122 @@ public class NbtUtil {
         };
     }
 
-    public static CompoundTag read(File file) throws IOException {
-        DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)));
-        byte type = in.readByte();
-        if (type != Tag.TAG_COMPOUND)
-            throw new NbtException("File isn't in NBT format");
-        in.readUTF();
-        return (CompoundTag) readByType(type, in);
+    /**
+     * Skips over a value of the given type without decoding it.
+     */
+    public static void skipByType(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case Tag.TAG_END -> {
+            }
+            case Tag.TAG_BYTE -> in.skipNBytes(1);
+            case Tag.TAG_SHORT -> in.skipNBytes(2);
+            case Tag.TAG_INT, Tag.TAG_FLOAT -> in.skipNBytes(4);
+            case Tag.TAG_LONG, Tag.TAG_DOUBLE -> in.skipNBytes(8);
+            case Tag.TAG_BYTE_ARRAY -> in.skipNBytes(in.readInt());
+            case Tag.TAG_INT_ARRAY -> in.skipNBytes(in.readInt() * 4L);
+            case Tag.TAG_LONG_ARRAY -> in.skipNBytes(in.readInt() * 8L);
+            case Tag.TAG_STRING -> in.skipNBytes(in.readUnsignedShort());
+            case Tag.TAG_LIST -> {
+                byte elementType = in.readByte();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++)
+                    skipByType(elementType, in);
+            }
+            case Tag.TAG_COMPOUND -> {
+                byte entryType;
+                while ((entryType = in.readByte()) != Tag.TAG_END) {
+                    in.skipNBytes(in.readUnsignedShort());
+                    skipByType(entryType, in);
+                }
+            }
+            default -> throw new NbtException("Unknown type: " + type);
+        }
+    }
+
+    /**
+     * Copies a value of the given type from {@code in} to {@code out} as it is stored, without decoding it.
+     */
+    public static void copyByType(byte type, DataInputStream in, DataOutputStream out) throws IOException {
+        copyByType(type, in, out, new byte[8192]);
+    }
+
+    private static void copyByType(byte type, DataInputStream in, DataOutputStream out, byte[] buffer)
+            throws IOException {
+        switch (type) {
+            case Tag.TAG_END -> {
+            }
+            case Tag.TAG_BYTE -> copyBytes(in, out, 1, buffer);
+            case Tag.TAG_SHORT -> copyBytes(in, out, 2, buffer);
+            case Tag.TAG_INT, Tag.TAG_FLOAT -> copyBytes(in, out, 4, buffer);
+            case Tag.TAG_LONG, Tag.TAG_DOUBLE -> copyBytes(in, out, 8, buffer);
+            case Tag.TAG_BYTE_ARRAY, Tag.TAG_INT_ARRAY, Tag.TAG_LONG_ARRAY -> {
+                int length = in.readInt();
+                if (length < 0)
+                    throw new NbtException("Negative array length: " + length);
+                out.writeInt(length);
+                int elementSize = type == Tag.TAG_BYTE_ARRAY ? 1 : type == Tag.TAG_INT_ARRAY ? 4 : 8;
+                copyBytes(in, out, (long) length * elementSize, buffer);
+            }
+            case Tag.TAG_STRING -> {
+                int length = in.readUnsignedShort();
+                out.writeShort(length);
+                copyBytes(in, out, length, buffer);
+            }
+            case Tag.TAG_LIST -> {
+                byte elementType = in.readByte();
+                int size = in.readInt();
+                out.writeByte(elementType);
+                out.writeInt(size);
+                for (int i = 0; i < size; i++)
+                    copyByType(elementType, in, out, buffer);
+            }
+            case Tag.TAG_COMPOUND -> {
+                byte entryType;
+                while ((entryType = in.readByte()) != Tag.TAG_END) {
+                    out.writeByte(entryType);
+                    int nameLength = in.readUnsignedShort();
+                    out.writeShort(nameLength);
+                    copyBytes(in, out, nameLength, buffer);
+                    copyByType(entryType, in, out, buffer);
+                }
+                out.writeByte(Tag.TAG_END);
+            }
+            default -> throw new NbtException("Unknown type: " + type);
+        }
+    }
+
+    private static void copyBytes(DataInputStream in, DataOutputStream out, long length, byte[] buffer)
+            throws IOException {
+        while (length > 0) {
+            int count = (int) Math.min(buffer.length, length);
+            in.readFully(buffer, 0, count);
+            out.write(buffer, 0, count);
+            length -= count;
+        }
+    }
+
+    /**
+     * Opens an NBT file for reading, whether it is gzip compressed, zlib compressed or uncompressed. Uncompressed files
+     * are read directly without going through an inflater.
+     */
+    public static InputStream open(File file) throws IOException {
+        byte[] header = new byte[2];
+        int read;
+        try (InputStream in = new FileInputStream(file)) {
+            read = in.readNBytes(header, 0, header.length);
+        }
+        NbtEncoding encoding = NbtEncoding.detect(header, read);
+        if (encoding == NbtEncoding.GZIP) return ParallelGzipInputStream.open(file);
+        return encoding.open(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    }
+
+    /**
+     * Opens NBT data that has already been loaded, in any of the encodings supported by {@link #open(File)}.
+     */
+    public static InputStream open(byte[] data) throws IOException {
+        NbtEncoding encoding = NbtEncoding.detect(data, data.length);
+        if (encoding == NbtEncoding.GZIP) return ParallelGzipInputStream.open(data);
+        return encoding.open(new ByteArrayInputStream(data));
     }
 
     public static CompoundTag read(DataInputStream in) throws IOException {
@@ -43,58 +150,41 @@ public class NbtUtil {
         return (CompoundTag) readByType(type, in);
     }
 
+    /**
+     * Reads decompressed NBT without decoding nested compounds up front. Each nested compound only records where its
+     * contents are in {@code data}, so it is decoded the first time it is accessed and written back verbatim if it
+     * never is.
+     */
+    public static CompoundTag readLazy(byte[] data) throws IOException {
+        if (data.length < 3 || data[0] != Tag.TAG_COMPOUND)
+            throw new NbtException("Not in NBT format");
+        int offset = 3 + ((data[1] & 0xFF) << 8 | data[2] & 0xFF);
+        return CompoundTag.lazy(data, offset, data.length - offset);
+    }
+
     public static void write(Tag tag, File file) throws IOException {
-        try (GZIPOutputStream gzip = new GZIPOutputStream(new FileOutputStream(file));
-                DataOutputStream out = new DataOutputStream(gzip)) {
-            out.write(tag.getType());
-            out.writeUTF("");
-            tag.writeContents(out);
-            out.flush();
-            gzip.finish();
+        try (OutputStream out = new FileOutputStream(file)) {
+            writeCompressed(tag, out);
         }
     }
 
-    public static void write(Tag tag, DataOutputStream out) throws IOException {
+    /**
+     * Writes a tag gzip compressed. The stream is flushed but not closed.
+     */
+    public static void writeCompressed(Tag tag, OutputStream stream) throws IOException {
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(stream);
+        DataOutputStream out = new DataOutputStream(gzip);
         out.write(tag.getType());
         out.writeUTF("");
         tag.writeContents(out);
+        out.flush();
+        gzip.finish();
     }
 
-    public static CompoundTag convertFromBlockString(String block) {
-        CompoundTag tag = new CompoundTag();
-        if (block.contains("[")) {
-            String name = block.substring(0, block.indexOf("["));
-            tag.put("Name", new StringTag(name));
-            String propertiesStr = block.substring(block.indexOf("[") + 1, block.indexOf("]"));
-            CompoundTag properties = new CompoundTag();
-            for (String property : propertiesStr.split(",")) {
-                String[] parts = property.split("=");
-                String key = parts[0];
-                String value = parts[1];
-                properties.put(key, new StringTag(value));
-            }
-            tag.put("Properties", properties);
-        } else
-            tag.put("Name", new StringTag(block));
-        return tag;
-    }
-
-    public static String convertToBlockString(CompoundTag entry) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(entry.getString("Name"));
-        if (entry.contains("Properties", Tag.TAG_COMPOUND)) {
-            CompoundTag properties = entry.getCompound("Properties");
-            sb.append("[");
-            for (String key : properties.keySet()) {
-                sb.append(key);
-                sb.append("=");
-                sb.append(properties.getString(key));
-                sb.append(",");
-            }
-            sb.deleteCharAt(sb.length() - 1);
-            sb.append("]");
-        }
-        return sb.toString();
+    public static void write(Tag tag, DataOutputStream out) throws IOException {
+        out.write(tag.getType());
+        out.writeUTF("");
+        tag.writeContents(out);
     }
 
     public static int getInt(Tag tag) {
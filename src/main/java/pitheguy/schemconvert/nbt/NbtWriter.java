@@ -0,0 +1,227 @@
+package pitheguy.schemconvert.nbt;
+
+import pitheguy.schemconvert.nbt.tags.CompoundTag;
+import pitheguy.schemconvert.nbt.tags.Tag;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A push-style NBT writer, the counterpart of {@link NbtReader}. Values are written straight to the output as they are
+ * produced instead of being collected into a tag tree first. Compound entries are introduced with {@link #name}, and
+ * lists must be given their element type and size up front since NBT stores them before the elements. Arrays can be
+ * written in chunks, so they never need to be held in memory as a whole.
+ * <p>
+ * Nesting is tracked in flat arrays, so writing many small compounds allocates nothing per compound.
+ */
+public class NbtWriter implements Closeable, Flushable {
+    // Element type recorded for compound scopes, which have no single element type
+    private static final byte COMPOUND = -1;
+
+    private final DataOutputStream out;
+    private byte[] elementTypes = new byte[16];
+    private int[] remaining = new int[16];
+    private int depth;
+    private String name;
+    private byte arrayType = -1;
+    private int arrayRemaining;
+
+    public NbtWriter(DataOutputStream out) {
+        this.out = out;
+        // The root behaves like a compound with a single unnamed entry
+        elementTypes[0] = COMPOUND;
+        remaining[0] = 1;
+    }
+
+    private boolean inCompound() {
+        return elementTypes[depth] == COMPOUND;
+    }
+
+    /**
+     * Sets the name of the next entry in the current compound.
+     */
+    public void name(String name) {
+        if (!inCompound())
+            throw new NbtException("Only compound entries have names");
+        if (this.name != null)
+            throw new NbtException("Name has already been written");
+        this.name = name;
+    }
+
+    private void beginValue(byte type) throws IOException {
+        if (arrayType != -1)
+            throw new NbtException("Array must be ended before writing further values");
+        if (inCompound()) {
+            if (depth == 0) {
+                if (remaining[0] == 0)
+                    throw new NbtException("Root tag has already been written");
+                remaining[0]--;
+                if (name == null) name = "";
+            } else if (name == null) {
+                throw new NbtException("Compound entries must be named");
+            }
+            out.writeByte(type);
+            out.writeUTF(name);
+            name = null;
+        } else {
+            if (type != elementTypes[depth])
+                throw new NbtException("Expected " + elementTypes[depth] + " but was " + type);
+            if (remaining[depth] == 0)
+                throw new NbtException("List is already full");
+            remaining[depth]--;
+        }
+    }
+
+    private void push(byte elementType, int size) {
+        if (++depth == elementTypes.length) {
+            elementTypes = Arrays.copyOf(elementTypes, depth * 2);
+            remaining = Arrays.copyOf(remaining, depth * 2);
+        }
+        elementTypes[depth] = elementType;
+        remaining[depth] = size;
+    }
+
+    public void beginCompound() throws IOException {
+        beginValue(Tag.TAG_COMPOUND);
+        push(COMPOUND, 0);
+    }
+
+    public void endCompound() throws IOException {
+        if (depth == 0 || !inCompound())
+            throw new NbtException("Not in a compound");
+        if (name != null)
+            throw new NbtException("Named entry has no value");
+        out.writeByte(Tag.TAG_END);
+        depth--;
+    }
+
+    public void beginList(byte elementType, int size) throws IOException {
+        if (elementType == Tag.TAG_END && size > 0)
+            throw new NbtException("Non-empty lists must have an element type");
+        beginValue(Tag.TAG_LIST);
+        out.writeByte(elementType);
+        out.writeInt(size);
+        push(elementType, size);
+    }
+
+    public void endList() {
+        if (inCompound())
+            throw new NbtException("Not in a list");
+        if (remaining[depth] != 0)
+            throw new NbtException(remaining[depth] + " list elements were never written");
+        depth--;
+    }
+
+    public void writeByte(byte value) throws IOException {
+        beginValue(Tag.TAG_BYTE);
+        out.writeByte(value);
+    }
+
+    public void writeShort(short value) throws IOException {
+        beginValue(Tag.TAG_SHORT);
+        out.writeShort(value);
+    }
+
+    public void writeInt(int value) throws IOException {
+        beginValue(Tag.TAG_INT);
+        out.writeInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        beginValue(Tag.TAG_LONG);
+        out.writeLong(value);
+    }
+
+    public void writeFloat(float value) throws IOException {
+        beginValue(Tag.TAG_FLOAT);
+        out.writeFloat(value);
+    }
+
+    public void writeDouble(double value) throws IOException {
+        beginValue(Tag.TAG_DOUBLE);
+        out.writeDouble(value);
+    }
+
+    public void writeString(String value) throws IOException {
+        beginValue(Tag.TAG_STRING);
+        out.writeUTF(value);
+    }
+
+    /**
+     * Starts a byte, int or long array of the given length. The contents are then written in chunks with
+     * {@link #writeBytes}, {@link #writeInts} or {@link #writeLongs}.
+     */
+    public void beginArray(byte type, int length) throws IOException {
+        if (type != Tag.TAG_BYTE_ARRAY && type != Tag.TAG_INT_ARRAY && type != Tag.TAG_LONG_ARRAY)
+            throw new NbtException("Type " + type + " is not an array");
+        if (length < 0)
+            throw new NbtException("Negative array length: " + length);
+        beginValue(type);
+        out.writeInt(length);
+        arrayType = type;
+        arrayRemaining = length;
+    }
+
+    private void checkArrayWrite(byte type, int length) {
+        if (arrayType != type)
+            throw new NbtException("Type mismatch: not in an array of type " + type);
+        if (length > arrayRemaining)
+            throw new NbtException("Array only has room for " + arrayRemaining + " more elements");
+        arrayRemaining -= length;
+    }
+
+    public void writeBytes(byte[] values, int offset, int length) throws IOException {
+        checkArrayWrite(Tag.TAG_BYTE_ARRAY, length);
+        out.write(values, offset, length);
+    }
+
+    public void writeInts(int[] values, int offset, int length) throws IOException {
+        checkArrayWrite(Tag.TAG_INT_ARRAY, length);
+        NbtArrays.writeInts(out, values, offset, length);
+    }
+
+    public void writeLongs(long[] values, int offset, int length) throws IOException {
+        checkArrayWrite(Tag.TAG_LONG_ARRAY, length);
+        NbtArrays.writeLongs(out, values, offset, length);
+    }
+
+    public void endArray() {
+        if (arrayType == -1)
+            throw new NbtException("Not in an array");
+        if (arrayRemaining != 0)
+            throw new NbtException(arrayRemaining + " array elements were never written");
+        arrayType = -1;
+    }
+
+    /**
+     * Writes a whole subtree, for values that are easier to build with the tree API.
+     */
+    public void writeTag(Tag tag) throws IOException {
+        beginValue(tag.getType());
+        tag.writeContents(out);
+    }
+
+    /**
+     * Writes the entries of {@code tag} into the current compound, except the excluded ones, which the caller can then
+     * write with new values. This leaves the tag itself untouched, since it's usually shared with a schematic.
+     */
+    public void writeEntries(CompoundTag tag, String... excluded) throws IOException {
+        Set<String> skipped = Set.of(excluded);
+        for (String key : tag.keySet()) {
+            if (skipped.contains(key)) continue;
+            name(key);
+            writeTag(tag.get(key));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
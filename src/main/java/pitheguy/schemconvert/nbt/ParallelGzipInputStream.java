@@ -0,0 +1,193 @@
+package pitheguy.schemconvert.nbt;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses gzip data written by {@link ParallelGzipOutputStream} by inflating its members in parallel, while
+ * returning the output in order. Use {@link #open} to fall back to a regular {@link GZIPInputStream} for any other
+ * gzip data, or to a {@link PipelinedGzipInputStream} for larger files. The pipeline's stage timings are printed to
+ * standard error when it is closed if the {@code schemconvert.reportTimings} system property is set.
+ */
+public class ParallelGzipInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long PIPELINE_THRESHOLD = 1 << 20;
+    private static final boolean REPORT_TIMINGS = Boolean.getBoolean("schemconvert.reportTimings");
+    // Deflate can't expand data by more than about 1032:1
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final byte[] data;
+    private final List<int[]> members;
+    private final int maxPending = Compression.executor().getParallelism() * 2;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private int nextMember;
+    private byte[] current = new byte[0];
+    private int position;
+
+    private ParallelGzipInputStream(byte[] data, List<int[]> members) {
+        this.data = data;
+        this.members = members;
+    }
+
+    public static InputStream open(File file) throws IOException {
+        byte[] header = new byte[ParallelGzipOutputStream.HEADER_SIZE];
+        int read;
+        try (InputStream in = new FileInputStream(file)) {
+            read = in.readNBytes(header, 0, header.length);
+        }
+        if (read == header.length && memberLength(header, 0) > 0)
+            return open(Files.readAllBytes(file.toPath()));
+        if (file.length() >= PIPELINE_THRESHOLD) {
+            PipelinedGzipInputStream pipelined = new PipelinedGzipInputStream(file);
+            if (!REPORT_TIMINGS) return pipelined;
+            return new FilterInputStream(pipelined) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    System.err.println(file.getName() + ": " + pipelined.getTimings());
+                }
+            };
+        }
+        return new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+    }
+
+    public static InputStream open(byte[] data) throws IOException {
+        List<int[]> members = findMembers(data);
+        if (members == null) return new GZIPInputStream(new ByteArrayInputStream(data), BUFFER_SIZE);
+        return new ParallelGzipInputStream(data, members);
+    }
+
+    /**
+     * Returns the offset and length of every member, or null if the data wasn't written as length-tagged members.
+     */
+    private static List<int[]> findMembers(byte[] data) {
+        List<int[]> members = new ArrayList<>();
+        int offset = 0;
+        while (offset < data.length) {
+            int length = memberLength(data, offset);
+            if (length <= 0 || offset + length > data.length) return null;
+            members.add(new int[] { offset, length });
+            offset += length;
+        }
+        return members.isEmpty() ? null : members;
+    }
+
+    private static int memberLength(byte[] data, int offset) {
+        if (data.length - offset < ParallelGzipOutputStream.HEADER_SIZE + ParallelGzipOutputStream.TRAILER_SIZE)
+            return -1;
+        if (data[offset] != 0x1f || data[offset + 1] != (byte) 0x8b || data[offset + 2] != 8 || data[offset + 3] != 4)
+            return -1;
+        if (data[offset + 10] != 8 || data[offset + 11] != 0 || data[offset + 12] != ParallelGzipOutputStream.SUBFIELD_ID1
+                || data[offset + 13] != ParallelGzipOutputStream.SUBFIELD_ID2 || data[offset + 14] != 4 || data[offset + 15] != 0)
+            return -1;
+        return readIntLE(data, offset + 16);
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16
+                | (data[offset + 3] & 0xFF) << 24;
+    }
+
+    private static byte[] inflateMember(byte[] data, int offset, int length) throws IOException {
+        int trailer = offset + length - ParallelGzipOutputStream.TRAILER_SIZE;
+        int compressedLength = trailer - offset - ParallelGzipOutputStream.HEADER_SIZE;
+        // The size in the trailer comes from the file, so it is only trusted as far as deflate could have produced it
+        long maxSize = Math.min(MAX_ARRAY_SIZE, (long) compressedLength * MAX_DEFLATE_RATIO);
+        long size = readIntLE(data, trailer + 4) & 0xFFFFFFFFL;
+        if (size > maxSize)
+            throw new IOException("Invalid gzip member: size " + size + " is impossible for " + compressedLength
+                    + " compressed bytes");
+        byte[] output = new byte[(int) size];
+        int inflated = 0;
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, offset + ParallelGzipOutputStream.HEADER_SIZE, compressedLength);
+            while (!inflater.finished()) {
+                if (inflated == output.length) {
+                    // The trailer understated the size. Inflating the rest is still bounded, and fails the size check
+                    if (output.length >= maxSize)
+                        throw new IOException("Invalid gzip member: inflates to more than " + maxSize + " bytes");
+                    output = Arrays.copyOf(output, (int) Math.min(maxSize, Math.max(output.length * 2L, 1 << 16)));
+                }
+                int count = inflater.inflate(output, inflated, output.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new EOFException("Truncated gzip member");
+                inflated += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid gzip member", e);
+        } finally {
+            inflater.end();
+        }
+        if (inflated != size)
+            throw new IOException("Corrupt gzip member: size mismatch");
+        CRC32 crc = new CRC32();
+        crc.update(output);
+        if ((int) crc.getValue() != readIntLE(data, trailer))
+            throw new IOException("Corrupt gzip member: CRC mismatch");
+        return output;
+    }
+
+    private boolean nextBlock() throws IOException {
+        while (nextMember < members.size() && pending.size() < maxPending) {
+            int[] member = members.get(nextMember++);
+            pending.add(Compression.executor().submit(() -> inflateMember(data, member[0], member[1])));
+        }
+        if (pending.isEmpty()) return false;
+        try {
+            current = pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing");
+        } catch (ExecutionException e) {
+            // The fork-join pool wraps checked exceptions from callables in runtime exceptions
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+                if (cause instanceof IOException io) throw io;
+            throw new IOException("Decompression failed", e.getCause());
+        }
+        position = 0;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (position == current.length)
+            if (!nextBlock()) return -1;
+        return current[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (position == current.length)
+            if (!nextBlock()) return -1;
+        int count = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    @Override
+    public void close() {
+        pending.forEach(future -> future.cancel(true));
+        pending.clear();
+        nextMember = members.size();
+    }
+}
@@ -0,0 +1,151 @@
+package pitheguy.schemconvert.nbt;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip stream that compresses blocks of input on a worker pool, in the style of pigz. Every block is written as
+ * its own gzip member, which is valid gzip that any reader can decompress. Each member header also records the
+ * member's length in an extra field, so {@link ParallelGzipInputStream} can split the file and inflate members in
+ * parallel.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    static final int HEADER_SIZE = 20;
+    static final int TRAILER_SIZE = 8;
+    static final byte SUBFIELD_ID1 = 'S';
+    static final byte SUBFIELD_ID2 = 'C';
+
+    private final OutputStream out;
+    private final Compression compression;
+    private final int maxPending = Compression.executor().getParallelism() * 2;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block;
+    private int blockLength;
+    private boolean wroteMember;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream out) {
+        this(out, Compression.get());
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, Compression compression) {
+        this.out = out;
+        this.compression = compression;
+        this.block = new byte[compression.blockSize()];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == block.length) submitBlock();
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockLength == block.length) submitBlock();
+            int count = Math.min(len, block.length - blockLength);
+            System.arraycopy(b, off, block, blockLength, count);
+            blockLength += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] input = block;
+        int length = blockLength;
+        pending.add(Compression.executor().submit(() -> compressMember(input, length, compression)));
+        wroteMember = true;
+        block = new byte[compression.blockSize()];
+        blockLength = 0;
+        while (pending.size() > maxPending) writeMember(pending.poll());
+    }
+
+    private void writeMember(Future<byte[]> member) throws IOException {
+        try {
+            out.write(member.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    /**
+     * Compresses any buffered input and writes all pending members, without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (closed) return;
+        if (blockLength > 0 || !wroteMember) submitBlock();
+        while (!pending.isEmpty()) writeMember(pending.poll());
+        out.flush();
+        closed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    static byte[] compressMember(byte[] input, int length, Compression compression) {
+        Deflater deflater = new Deflater(compression.level(), true);
+        try {
+            deflater.setStrategy(compression.strategy());
+            deflater.setInput(input, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + HEADER_SIZE + TRAILER_SIZE + 64);
+            member.write(new byte[HEADER_SIZE], 0, HEADER_SIZE);
+            byte[] buffer = new byte[1 << 16];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                member.write(buffer, 0, count);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(input, 0, length);
+            writeIntLE(member, (int) crc.getValue());
+            writeIntLE(member, length);
+            byte[] bytes = member.toByteArray();
+            writeHeader(bytes, bytes.length);
+            return bytes;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeHeader(byte[] member, int memberLength) {
+        member[0] = 0x1f;
+        member[1] = (byte) 0x8b;
+        member[2] = 8; // deflate
+        member[3] = 4; // FEXTRA
+        // Bytes 4-8 are the modification time and extra flags, left as zero
+        member[9] = (byte) 255; // Unknown OS
+        member[10] = 8; // Extra field length
+        member[11] = 0;
+        member[12] = SUBFIELD_ID1;
+        member[13] = SUBFIELD_ID2;
+        member[14] = 4; // Subfield length
+        member[15] = 0;
+        member[16] = (byte) memberLength;
+        member[17] = (byte) (memberLength >>> 8);
+        member[18] = (byte) (memberLength >>> 16);
+        member[19] = (byte) (memberLength >>> 24);
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
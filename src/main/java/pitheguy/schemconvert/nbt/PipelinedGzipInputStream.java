@@ -0,0 +1,206 @@
+package pitheguy.schemconvert.nbt;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompresses a gzip file in a three-stage pipeline. One thread reads the file in large sequential chunks, a second
+ * inflates them into a fixed ring of buffers, and the caller parses from those buffers. The stages are connected by
+ * bounded queues, so a slow stage holds back the ones before it instead of letting buffers pile up.
+ * <p>
+ * Time spent in each stage is available from {@link #getTimings()}.
+ */
+public class PipelinedGzipInputStream extends InputStream {
+    private static final int READ_CHUNK_SIZE = 1 << 20;
+    private static final int INFLATE_BUFFER_SIZE = 1 << 18;
+    private static final int READ_QUEUE_CAPACITY = 4;
+    private static final int RING_SIZE = 8;
+    private static final Chunk END = new Chunk(null, -1, null);
+
+    private final File file;
+    private final BlockingQueue<Chunk> compressed = new ArrayBlockingQueue<>(READ_QUEUE_CAPACITY);
+    private final BlockingQueue<Chunk> inflated = new ArrayBlockingQueue<>(RING_SIZE);
+    private final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(RING_SIZE);
+    private final Thread readThread;
+    private final Thread inflateThread;
+    private final long startTime = System.nanoTime();
+    private volatile long readNanos;
+    private volatile long inflateNanos;
+    private long waitNanos;
+    private Chunk current;
+    private int position;
+    private volatile boolean closed;
+
+    public PipelinedGzipInputStream(File file) {
+        this.file = file;
+        for (int i = 0; i < RING_SIZE; i++) freeBuffers.add(new byte[INFLATE_BUFFER_SIZE]);
+        readThread = Thread.ofPlatform().daemon().name("schemconvert-read").start(this::readStage);
+        inflateThread = Thread.ofPlatform().daemon().name("schemconvert-inflate").start(this::inflateStage);
+    }
+
+    private void readStage() {
+        try (FileInputStream in = new FileInputStream(file)) {
+            while (true) {
+                long start = System.nanoTime();
+                byte[] buffer = new byte[READ_CHUNK_SIZE];
+                int read = in.readNBytes(buffer, 0, buffer.length);
+                readNanos += System.nanoTime() - start;
+                if (read > 0) compressed.put(new Chunk(buffer, read, null));
+                if (read < buffer.length) break;
+            }
+            compressed.put(END);
+        } catch (IOException e) {
+            sendError(compressed, e);
+        } catch (InterruptedException ignored) {
+            // Closed by the consumer
+        }
+    }
+
+    private void inflateStage() {
+        ChunkInputStream source = new ChunkInputStream();
+        try (GZIPInputStream gzip = new GZIPInputStream(source, 1 << 16)) {
+            while (true) {
+                byte[] buffer = freeBuffers.take();
+                long start = System.nanoTime();
+                long waitedBefore = source.waitNanos;
+                int read = gzip.readNBytes(buffer, 0, buffer.length);
+                inflateNanos += System.nanoTime() - start - (source.waitNanos - waitedBefore);
+                if (read > 0) inflated.put(new Chunk(buffer, read, null));
+                if (read < buffer.length) break;
+            }
+            inflated.put(END);
+        } catch (IOException e) {
+            sendError(inflated, e);
+        } catch (InterruptedException ignored) {
+            // Closed by the consumer
+        }
+    }
+
+    /**
+     * Passes an error on to the next stage. This waits for space like any other chunk, since dropping it would leave
+     * the next stage waiting forever. Once the stream is closed there is nobody left to report it to.
+     */
+    private void sendError(BlockingQueue<Chunk> queue, IOException e) {
+        if (closed) return;
+        try {
+            queue.put(new Chunk(null, -1, e));
+        } catch (InterruptedException ignored) {
+            // Closed while waiting for space
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (current == END) return false;
+        if (current != null) freeBuffers.offer(current.data);
+        long start = System.nanoTime();
+        try {
+            current = inflated.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing " + file);
+        } finally {
+            waitNanos += System.nanoTime() - start;
+        }
+        if (current.error != null) throw current.error;
+        position = 0;
+        return current != END;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (current == null || position == current.length)
+            if (!nextChunk()) return -1;
+        return current.data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (current == null || position == current.length)
+            if (!nextChunk()) return -1;
+        int count = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null || current == END ? 0 : current.length - position;
+    }
+
+    public Timings getTimings() {
+        return new Timings(readNanos, inflateNanos, System.nanoTime() - startTime - waitNanos, waitNanos);
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        readThread.interrupt();
+        inflateThread.interrupt();
+    }
+
+    /**
+     * Time spent in each stage. {@code parseNanos} is the time the consumer spent outside of waiting for data.
+     */
+    public record Timings(long readNanos, long inflateNanos, long parseNanos, long waitNanos) {
+        @Override
+        public String toString() {
+            return String.format("read %.1f ms, inflate %.1f ms, parse %.1f ms, parser waited %.1f ms", readNanos / 1e6,
+                    inflateNanos / 1e6, parseNanos / 1e6, waitNanos / 1e6);
+        }
+    }
+
+    private record Chunk(byte[] data, int length, IOException error) {
+    }
+
+    /**
+     * Feeds the chunks produced by the read stage to the inflater.
+     */
+    private class ChunkInputStream extends InputStream {
+        private Chunk chunk;
+        private int chunkPosition;
+        private long waitNanos;
+
+        private boolean ensureData() throws IOException {
+            while (chunk == null || chunk != END && chunkPosition == chunk.length) {
+                long start = System.nanoTime();
+                try {
+                    chunk = compressed.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading " + file);
+                } finally {
+                    waitNanos += System.nanoTime() - start;
+                }
+                if (chunk.error != null) throw chunk.error;
+                chunkPosition = 0;
+            }
+            return chunk != END;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureData()) return -1;
+            return chunk.data[chunkPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!ensureData()) return -1;
+            int count = Math.min(len, chunk.length - chunkPosition);
+            System.arraycopy(chunk.data, chunkPosition, b, off, count);
+            chunkPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return chunk == null || chunk == END ? 0 : chunk.length - chunkPosition;
+        }
+    }
+}
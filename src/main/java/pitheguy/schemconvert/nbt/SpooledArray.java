@@ -0,0 +1,113 @@
+package pitheguy.schemconvert.nbt;
+
+import pitheguy.schemconvert.nbt.tags.Tag;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The contents of an NBT array that has been read from a stream but may be too large for the heap. Small arrays are
+ * kept in memory, while larger ones are copied to a temporary file and read back in chunks, so a reader can hold on to
+ * an array until the rest of the data it depends on has been read. The temporary file is deleted on {@link #close}.
+ */
+public class SpooledArray implements Closeable {
+    /**
+     * Size in bytes above which arrays are kept in a temporary file. Can be set with the
+     * {@code schemconvert.spoolThreshold} system property.
+     */
+    public static final long SPOOL_THRESHOLD = Long.getLong("schemconvert.spoolThreshold", 1 << 26);
+
+    private final int length;
+    private final byte[] memory;
+    private final FileChannel file;
+
+    private SpooledArray(int length, byte[] memory, FileChannel file) {
+        this.length = length;
+        this.memory = memory;
+        this.file = file;
+    }
+
+    /**
+     * Reads the next value, which must be a byte, int or long array.
+     */
+    public static SpooledArray read(NbtReader reader) throws IOException {
+        byte type = reader.peek();
+        int length = reader.beginArray();
+        long bytes = (long) length * switch (type) {
+            case Tag.TAG_INT_ARRAY -> Integer.BYTES;
+            case Tag.TAG_LONG_ARRAY -> Long.BYTES;
+            default -> 1;
+        };
+        if (bytes <= SPOOL_THRESHOLD) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) bytes);
+            reader.transferArray(out);
+            reader.endArray();
+            return new SpooledArray(length, out.toByteArray(), null);
+        }
+        Path path = Files.createTempFile("schemconvert", ".array");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        try {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            reader.transferArray(out);
+            out.flush();
+            reader.endArray();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return new SpooledArray(length, null, channel);
+    }
+
+    /**
+     * Returns the number of elements.
+     */
+    public int length() {
+        return length;
+    }
+
+    private void read(long position, byte[] dest, int offset, int count) throws IOException {
+        if (memory != null) {
+            System.arraycopy(memory, (int) position, dest, offset, count);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(dest, offset, count);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position() - offset) < 0)
+                throw new EOFException("Spooled array is truncated");
+        }
+    }
+
+    /**
+     * Copies {@code count} elements of a byte array starting at {@code index}.
+     */
+    public void getBytes(long index, byte[] dest, int offset, int count) throws IOException {
+        read(index, dest, offset, count);
+    }
+
+    /**
+     * Copies {@code count} elements of a long array starting at {@code index}.
+     */
+    public void getLongs(long index, long[] dest, int offset, int count) throws IOException {
+        byte[] scratch = new byte[(int) Math.min((long) count * Long.BYTES, 1 << 16)];
+        int perChunk = scratch.length / Long.BYTES;
+        while (count > 0) {
+            int chunk = Math.min(count, perChunk);
+            read(index * Long.BYTES, scratch, 0, chunk * Long.BYTES);
+            ByteBuffer.wrap(scratch, 0, chunk * Long.BYTES).asLongBuffer().get(dest, offset, chunk);
+            index += chunk;
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) file.close();
+    }
+}
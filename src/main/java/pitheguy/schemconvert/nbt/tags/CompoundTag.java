@@ -6,31 +6,94 @@ import pitheguy.schemconvert.nbt.NbtUtil;
 import java.io.*;
 import java.util.*;
 
+/**
+ * A compound tag. Lazy compounds keep their encoded contents and decode them on first access; decoding is synchronized
+ * and its result safely published, so lazy compounds can be shared between threads like any other tag.
+ */
 public class CompoundTag implements Tag {
-    Map<String, Tag> tags;
+    private volatile Map<String, Tag> tags;
+    private volatile byte[] raw;
+    private final int rawOffset;
+    private final int rawLength;
 
     public CompoundTag() {
+        this(null, 0, 0);
         tags = new LinkedHashMap<>();
     }
 
+    private CompoundTag(byte[] raw, int rawOffset, int rawLength) {
+        this.raw = raw;
+        this.rawOffset = rawOffset;
+        this.rawLength = rawLength;
+    }
+
+    /**
+     * Creates a compound whose contents are the given range of an NBT buffer. The contents are only decoded when the
+     * compound is first accessed, and nested compounds are again lazy and share the buffer.
+     */
+    public static CompoundTag lazy(byte[] data, int offset, int length) {
+        return new CompoundTag(data, offset, length);
+    }
+
+    private Map<String, Tag> tags() {
+        Map<String, Tag> result = tags;
+        if (result != null) return result;
+        synchronized (this) {
+            if (tags == null) {
+                tags = decode(raw);
+                raw = null;
+            }
+            return tags;
+        }
+    }
+
+    private Map<String, Tag> decode(byte[] raw) {
+        Map<String, Tag> decoded = new LinkedHashMap<>();
+        LazyInput input = new LazyInput(raw, rawOffset, rawLength);
+        DataInputStream in = new DataInputStream(input);
+        try {
+            byte type;
+            while ((type = in.readByte()) != Tag.TAG_END) {
+                String key = in.readUTF();
+                decoded.put(key, readLazy(type, input, in));
+            }
+        } catch (IOException e) {
+            throw new NbtException("Malformed NBT: " + e.getMessage());
+        }
+        return decoded;
+    }
+
+    static Tag readLazy(byte type, LazyInput input, DataInputStream in) throws IOException {
+        return switch (type) {
+            case Tag.TAG_COMPOUND -> {
+                int start = input.position();
+                NbtUtil.skipByType(type, in);
+                yield new CompoundTag(input.buffer(), start, input.position() - start);
+            }
+            case Tag.TAG_LIST -> ListTag.readLazy(input, in);
+            default -> NbtUtil.readByType(type, in);
+        };
+    }
+
     public Set<String> keySet() {
-        return tags.keySet();
+        return tags().keySet();
     }
 
     public void put(String key, Tag tag) {
-        tags.put(key, tag);
+        tags().put(key, tag);
     }
 
     public boolean contains(String key, byte type) {
-        return tags.containsKey(key) && tags.get(key).getType() == type;
+        Tag tag = tags().get(key);
+        return tag != null && tag.getType() == type;
     }
 
     public Tag get(String key) {
-        return tags.get(key);
+        return tags().get(key);
     }
 
     public Tag get(String key, byte type) {
-        Tag tag = tags.get(key);
+        Tag tag = tags().get(key);
         if (tag == null)
             throw new NbtException("No such tag: " + key);
         if (tag.getType() != type)
@@ -87,12 +150,18 @@ public class CompoundTag implements Tag {
     }
 
     public void remove(String key) {
-        tags.remove(key);
+        tags().remove(key);
     }
 
     @Override
     public void writeContents(DataOutputStream out) throws IOException {
-        for (Map.Entry<String, Tag> entry : tags.entrySet()) {
+        // The contents can only change after they are decoded, so undecoded bytes are still current
+        byte[] encoded = raw;
+        if (encoded != null) {
+            out.write(encoded, rawOffset, rawLength);
+            return;
+        }
+        for (Map.Entry<String, Tag> entry : tags().entrySet()) {
             String key = entry.getKey();
             Tag tag = entry.getValue();
             out.writeByte(tag.getType());
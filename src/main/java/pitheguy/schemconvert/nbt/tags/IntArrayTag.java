@@ -1,12 +1,14 @@
 package pitheguy.schemconvert.nbt.tags;
 
+import pitheguy.schemconvert.nbt.NbtArrays;
+
 import java.io.*;
 
 public record IntArrayTag(int[] values) implements Tag {
     @Override
     public void writeContents(DataOutputStream out) throws IOException {
         out.writeInt(values.length);
-        for (int value : values) out.writeInt(value);
+        NbtArrays.writeInts(out, values);
     }
 
     @Override
@@ -17,7 +19,7 @@ public record IntArrayTag(int[] values) implements Tag {
     public static IntArrayTag readContents(DataInputStream in) throws IOException {
         int size = in.readInt();
         int[] values = new int[size];
-        for (int i = 0; i < size; ++i) values[i] = in.readInt();
+        NbtArrays.readInts(in, values, 0, size);
         return new IntArrayTag(values);
     }
 }
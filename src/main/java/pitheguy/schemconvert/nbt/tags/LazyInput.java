@@ -0,0 +1,21 @@
+package pitheguy.schemconvert.nbt.tags;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Input over an in-memory NBT buffer that exposes its position, so lazily read tags can record where they start and
+ * end.
+ */
+class LazyInput extends ByteArrayInputStream {
+    LazyInput(byte[] buf, int offset, int length) {
+        super(buf, offset, length);
+    }
+
+    int position() {
+        return pos;
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+}
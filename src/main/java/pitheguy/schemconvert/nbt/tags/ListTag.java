@@ -34,6 +34,14 @@ public class ListTag extends ArrayList<Tag> implements Tag {
         return tag;
     }
 
+    static ListTag readLazy(LazyInput input, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        int size = in.readInt();
+        ListTag tag = new ListTag(type);
+        for (int i = 0; i < size; i++) tag.add(CompoundTag.readLazy(type, input, in));
+        return tag;
+    }
+
     @Override
     public byte getType() {
         return 9;
@@ -1,12 +1,14 @@
 package pitheguy.schemconvert.nbt.tags;
 
+import pitheguy.schemconvert.nbt.NbtArrays;
+
 import java.io.*;
 
 public record LongArrayTag(long[] values) implements Tag {
     @Override
     public void writeContents(DataOutputStream out) throws IOException {
         out.writeInt(values.length);
-        for (long value : values) out.writeLong(value);
+        NbtArrays.writeLongs(out, values);
     }
 
     @Override
@@ -17,7 +19,7 @@ public record LongArrayTag(long[] values) implements Tag {
     public static LongArrayTag readContents(DataInputStream in) throws IOException {
         int size = in.readInt();
         long[] values = new long[size];
-        for (int i = 0; i < size; ++i) values[i] = in.readLong();
+        NbtArrays.readLongs(in, values, 0, size);
         return new LongArrayTag(values);
     }
 }
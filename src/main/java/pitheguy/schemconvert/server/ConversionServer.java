@@ -0,0 +1,319 @@
+package pitheguy.schemconvert.server;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import pitheguy.schemconvert.converter.ConversionException;
+import pitheguy.schemconvert.converter.Converter;
+import pitheguy.schemconvert.converter.formats.SchematicFormat;
+import pitheguy.schemconvert.converter.formats.SchematicFormats;
+import pitheguy.schemconvert.nbt.NbtException;
+import pitheguy.schemconvert.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serves conversions over HTTP on the loopback interface, so that callers converting many small files only pay for JVM
+ * startup and loading the mapping tables once.
+ * <p>
+ * {@code POST /convert} converts one file, in one of two ways:
+ * <ul>
+ * <li>With an {@code input} path parameter, along with {@code output} and/or {@code format} as on the command line.
+ * The server reads and writes the files itself and responds with a JSON result.</li>
+ * <li>With the input's contents as the request body and a {@code format} parameter. The response body is the
+ * converted contents. An optional {@code name} parameter gives the input's file name, whose extension is used if the
+ * contents aren't recognized.</li>
+ * </ul>
+ * Conversion times are reported in milliseconds in the {@code X-Conversion-Time} header, and in the JSON result for
+ * path jobs. {@code GET /status} reports the version and how many jobs are running. At most {@code maxJobs}
+ * conversions run at once, and further requests wait for a free slot. Conversions also wait for room in the
+ * converter's memory budget, like files in a batch. Uploads reserve it from their declared length before their
+ * contents are read, and uploads larger than {@link #MAX_UPLOAD_SIZE} are refused.
+ * <p>
+ * Since conversions read and write files with the server's permissions, every request must carry a random token in
+ * the {@value #TOKEN_HEADER} header. The token is generated on start and written to a file only the current user can
+ * read (see {@link #tokenFile}). Requests with an {@code Origin} header are rejected, so web pages can't use the
+ * server even though it is on localhost.
+ */
+public class ConversionServer {
+    public static final int DEFAULT_PORT = 25580;
+    public static final String TOKEN_HEADER = "X-SchemConvert-Token";
+    /**
+     * Largest request body accepted in bytes. Can be set in MiB with the {@code schemconvert.serverMaxUpload} system
+     * property.
+     */
+    public static final int MAX_UPLOAD_SIZE = (int) Math.min(Integer.MAX_VALUE - 8,
+            Long.getLong("schemconvert.serverMaxUpload", 256) << 20);
+    private static final Gson GSON = new Gson();
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private final Converter converter;
+    private final int maxJobs;
+    private final Semaphore jobs;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final byte[] token;
+    private Path tokenFile;
+
+    public ConversionServer(int port, int maxJobs, Converter converter) throws IOException {
+        if (maxJobs < 1) throw new IllegalArgumentException("Job limit must be positive");
+        this.converter = converter;
+        this.maxJobs = maxJobs;
+        this.jobs = new Semaphore(maxJobs, true);
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        this.token = HexFormat.of().formatHex(random).getBytes(StandardCharsets.UTF_8);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executor);
+        server.createContext("/convert", this::handleConvert);
+        server.createContext("/status", this::handleStatus);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * The file the token of a server on the given port is written to, {@code .schemconvert/server-<port>.token} in the
+     * user's home directory.
+     */
+    public static Path tokenFile(int port) {
+        return Path.of(System.getProperty("user.home"), ".schemconvert", "server-" + port + ".token");
+    }
+
+    /**
+     * Writes the token file and starts accepting requests. Returns the token file.
+     */
+    public Path start() throws IOException {
+        tokenFile = tokenFile(getPort());
+        Files.createDirectories(tokenFile.getParent());
+        // A file left by an earlier server may be readable by others, so it is always created anew
+        Files.deleteIfExists(tokenFile);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+            Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        else Files.createFile(tokenFile);
+        Files.write(tokenFile, token);
+        server.start();
+        return tokenFile;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.close();
+        if (tokenFile == null) return;
+        try {
+            Files.deleteIfExists(tokenFile);
+        } catch (IOException e) {
+            System.err.println("Failed to delete " + tokenFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Responds with an error and returns false unless the request carries the token and doesn't come from a web page.
+     */
+    private boolean authorize(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            sendJson(exchange, 403, error("Requests from web pages are not allowed"));
+            return false;
+        }
+        String given = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        if (given == null || !MessageDigest.isEqual(token, given.getBytes(StandardCharsets.UTF_8))) {
+            sendJson(exchange, 401, error("Missing or incorrect " + TOKEN_HEADER + " header"));
+            return false;
+        }
+        return true;
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!authorize(exchange)) return;
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("version", Converter.VERSION);
+            status.put("activeJobs", maxJobs - jobs.availablePermits());
+            status.put("maxJobs", maxJobs);
+            sendJson(exchange, 200, status);
+        }
+    }
+
+    private void handleConvert(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!authorize(exchange)) return;
+            if (!exchange.getRequestMethod().equals("POST")) {
+                sendJson(exchange, 405, error("Conversions must be POST requests"));
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            try {
+                jobs.acquire();
+            } catch (InterruptedException e) {
+                sendJson(exchange, 503, error("Server is shutting down"));
+                return;
+            }
+            try {
+                if (params.containsKey("input")) convertFile(exchange, params);
+                else convertBody(exchange, params);
+            } finally {
+                jobs.release();
+            }
+        }
+    }
+
+    private void convertFile(HttpExchange exchange, Map<String, String> params) throws IOException {
+        File input = new File(params.get("input"));
+        File output;
+        SchematicFormat format;
+        try {
+            if (params.containsKey("format")) {
+                format = SchematicFormats.formatFromExtension("." + params.get("format"));
+                output = params.containsKey("output") ? new File(params.get("output"))
+                        : new File(input.getParentFile(), Util.stripExtension(input.getName()) + format.getExtension());
+            } else if (params.containsKey("output")) {
+                output = new File(params.get("output"));
+                format = SchematicFormats.formatFromExtension(Util.getExtension(output.getName()));
+            } else {
+                sendJson(exchange, 400, error("Either output or format must be given"));
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            sendJson(exchange, 400, error("Unrecognized output format"));
+            return;
+        }
+        if (!input.isFile()) {
+            sendJson(exchange, 404, error("Input file not found: " + input));
+            return;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("input", input.getPath());
+        result.put("output", output.getPath());
+        long start = System.nanoTime();
+        try {
+            converter.convert(input, output, format);
+            result.put("status", "CONVERTED");
+        } catch (IOException | ConversionException | NbtException | IllegalArgumentException e) {
+            result.put("status", "FAILED");
+            result.put("error", e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+            result.put("status", "FAILED");
+            result.put("error", "An error occurred while converting " + input + " to " + output);
+        }
+        double time = (System.nanoTime() - start) / 1e6;
+        result.put("time", time);
+        exchange.getResponseHeaders().set("X-Conversion-Time", String.valueOf(time));
+        sendJson(exchange, result.get("status").equals("FAILED") ? 422 : 200, result);
+    }
+
+    private void convertBody(HttpExchange exchange, Map<String, String> params) throws IOException {
+        if (!params.containsKey("format")) {
+            sendJson(exchange, 400, error("Either input or format must be given"));
+            return;
+        }
+        SchematicFormat format;
+        try {
+            format = SchematicFormats.formatFromExtension("." + params.get("format"));
+        } catch (IllegalArgumentException e) {
+            sendJson(exchange, 400, error("Unrecognized output format: " + params.get("format")));
+            return;
+        }
+        // Chunked uploads don't declare their length, so room is reserved for the largest one allowed
+        long length = MAX_UPLOAD_SIZE;
+        String declaredLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (declaredLength != null) {
+            try {
+                length = Long.parseLong(declaredLength);
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            if (length < 0) {
+                sendJson(exchange, 400, error("Invalid Content-Length: " + declaredLength));
+                return;
+            }
+            if (length > MAX_UPLOAD_SIZE) {
+                sendJson(exchange, 413, error("Uploads are limited to " + MAX_UPLOAD_SIZE + " bytes"));
+                return;
+            }
+        }
+        // The upload is only read once its memory is reserved, so waiting uploads aren't held in memory
+        Converter.Reservation reservation;
+        try {
+            reservation = converter.reserveUpload(length);
+        } catch (InterruptedIOException e) {
+            sendJson(exchange, 503, error("Server is shutting down"));
+            return;
+        }
+        try (reservation) {
+            // At most one byte more than the limit is read, to detect chunked uploads that go over it
+            byte[] input = exchange.getRequestBody().readNBytes(MAX_UPLOAD_SIZE + 1);
+            if (input.length > MAX_UPLOAD_SIZE) {
+                sendJson(exchange, 413, error("Uploads are limited to " + MAX_UPLOAD_SIZE + " bytes"));
+                return;
+            }
+            long start = System.nanoTime();
+            byte[] output;
+            try {
+                output = converter.convert(input, params.getOrDefault("name", "upload"), format, reservation);
+            } catch (IOException | ConversionException | NbtException | IllegalArgumentException e) {
+                exchange.getResponseHeaders().set("X-Conversion-Time",
+                        String.valueOf((System.nanoTime() - start) / 1e6));
+                sendJson(exchange, 422, error(e.getMessage()));
+                return;
+            }
+            exchange.getResponseHeaders().set("X-Conversion-Time", String.valueOf((System.nanoTime() - start) / 1e6));
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, output.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(output);
+            }
+        }
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("status", "FAILED");
+        error.put("error", message);
+        return error;
+    }
+
+    private static void sendJson(HttpExchange exchange, int code, Map<String, Object> body) throws IOException {
+        byte[] json = GSON.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, json.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(json);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            if (equals < 0) continue;
+            params.put(URLDecoder.decode(param.substring(0, equals), StandardCharsets.UTF_8),
+                    URLDecoder.decode(param.substring(equals + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+}
@@ -157,18 +157,22 @@ public class Gui extends JFrame {
         File output = new File(outputPathField.getText());
         SchematicFormat format = formatDropdown.getSelectedFormat();
         try {
-            List<File> failedFiles = new Converter().convert(selectedFiles, output, format);
+            List<ConversionResult> results = new Converter().convert(selectedFiles, output, format);
+            List<ConversionResult> failed = results.stream().filter(result -> !result.isSuccess()).toList();
             outputPathField.setText("");
-            if (failedFiles.isEmpty())
+            if (failed.isEmpty())
                 JOptionPane.showMessageDialog(this, "Schematics successfully converted!", "Success",
                         JOptionPane.INFORMATION_MESSAGE);
             else {
                 StringBuilder sb = new StringBuilder();
                 sb.append("The following files failed to convert:\n");
-                for (File file : failedFiles)
-                    sb.append("- ").append(file.getName()).append("\n");
+                for (ConversionResult result : failed) {
+                    sb.append("- ").append(result.input().getName());
+                    if (result.error().getMessage() != null) sb.append(": ").append(result.error().getMessage());
+                    sb.append("\n");
+                }
 
-                sb.append("\n\n").append(selectedFiles.length).append(" other files converted successfully!");
+                sb.append("\n\n").append(results.size() - failed.size()).append(" other files converted successfully!");
                 JOptionPane.showMessageDialog(this, sb.toString(), "Error", JOptionPane.ERROR_MESSAGE);
             }
         } catch (IOException e) {
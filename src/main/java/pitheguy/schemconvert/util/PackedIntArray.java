@@ -0,0 +1,211 @@
+package pitheguy.schemconvert.util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size array of small unsigned integers packed into a {@code long[]}, working on whole words at a time.
+ * <p>
+ * In the spanning layout (used by Litematica) values are packed back to back and may cross word boundaries. In the
+ * non-spanning layout (used by Axiom and vanilla chunk sections) each word holds {@code 64 / bitsPerValue} values and
+ * the leftover high bits are unused.
+ */
+public class PackedIntArray {
+    private static final long[] DIVIDE_MULTIPLIERS = new long[Long.SIZE + 1];
+    private static final int[] DIVIDE_SHIFTS = new int[Long.SIZE + 1];
+
+    static {
+        // Precomputed multiply-and-shift replacements for dividing a non-negative int by each possible values per long
+        for (int divisor = 1; divisor <= Long.SIZE; divisor++) {
+            int shift = Integer.SIZE - Integer.numberOfLeadingZeros(divisor - 1);
+            DIVIDE_SHIFTS[divisor] = Integer.SIZE + shift;
+            DIVIDE_MULTIPLIERS[divisor] = (1L << (Integer.SIZE + shift)) / divisor + 1;
+        }
+    }
+
+    private final long[] data;
+    private final int bitsPerValue;
+    private final int size;
+    private final boolean spanning;
+    private final long mask;
+    private final int valuesPerLong;
+    private final long divideMultiplier;
+    private final int divideShift;
+
+    public PackedIntArray(int bitsPerValue, int size, boolean spanning) {
+        this(bitsPerValue, size, spanning, null);
+    }
+
+    /**
+     * Wraps existing packed data. Data that is shorter than required, for example because trailing zero words were
+     * trimmed, is padded with zeros.
+     */
+    public PackedIntArray(int bitsPerValue, int size, boolean spanning, long[] data) {
+        if (bitsPerValue < 1 || bitsPerValue > Integer.SIZE)
+            throw new IllegalArgumentException("Invalid bits per value: " + bitsPerValue);
+        this.bitsPerValue = bitsPerValue;
+        this.size = size;
+        this.spanning = spanning;
+        this.mask = (1L << bitsPerValue) - 1;
+        this.valuesPerLong = Long.SIZE / bitsPerValue;
+        this.divideMultiplier = DIVIDE_MULTIPLIERS[valuesPerLong];
+        this.divideShift = DIVIDE_SHIFTS[valuesPerLong];
+        int length = requiredLength(bitsPerValue, size, spanning);
+        if (data == null) this.data = new long[length];
+        else this.data = data.length < length ? Arrays.copyOf(data, length) : data;
+    }
+
+    public static int requiredLength(int bitsPerValue, int size, boolean spanning) {
+        if (spanning) return (int) Math.ceilDiv((long) size * bitsPerValue, Long.SIZE);
+        return Math.ceilDiv(size, Long.SIZE / bitsPerValue);
+    }
+
+    private int wordIndex(int index) {
+        return (int) ((index * divideMultiplier) >>> divideShift);
+    }
+
+    public int get(int index) {
+        if (spanning) {
+            long bitIndex = (long) index * bitsPerValue;
+            int word = (int) (bitIndex >>> 6);
+            int offset = (int) (bitIndex & 63);
+            long value = data[word] >>> offset;
+            if (offset + bitsPerValue > Long.SIZE) value |= data[word + 1] << (Long.SIZE - offset);
+            return (int) (value & mask);
+        }
+        int word = wordIndex(index);
+        int offset = (index - word * valuesPerLong) * bitsPerValue;
+        return (int) ((data[word] >>> offset) & mask);
+    }
+
+    public void set(int index, int value) {
+        long bits = value & mask;
+        if (spanning) {
+            long bitIndex = (long) index * bitsPerValue;
+            int word = (int) (bitIndex >>> 6);
+            int offset = (int) (bitIndex & 63);
+            data[word] = data[word] & ~(mask << offset) | bits << offset;
+            if (offset + bitsPerValue > Long.SIZE) {
+                int shift = Long.SIZE - offset;
+                data[word + 1] = data[word + 1] & ~(mask >>> shift) | bits >>> shift;
+            }
+            return;
+        }
+        int word = wordIndex(index);
+        int offset = (index - word * valuesPerLong) * bitsPerValue;
+        data[word] = data[word] & ~(mask << offset) | bits << offset;
+    }
+
+    /**
+     * Unpacks {@code length} values starting at {@code start} into {@code dest}.
+     */
+    public void get(int start, int[] dest, int destOffset, int length) {
+        int blockSize = PackedInts.blockSize(bitsPerValue, spanning);
+        if (blockSize == 0 || length < 2 * blockSize) {
+            getScalar(start, dest, destOffset, length);
+            return;
+        }
+        int head = Math.floorMod(-start, blockSize);
+        getScalar(start, dest, destOffset, head);
+        int unpacked = head + PackedInts.unpackBlocks(data, bitsPerValue, spanning, start + head, dest,
+                destOffset + head, length - head);
+        getScalar(start + unpacked, dest, destOffset + unpacked, length - unpacked);
+    }
+
+    void getScalar(int start, int[] dest, int destOffset, int length) {
+        if (length == 0) return;
+        int end = destOffset + length;
+        if (spanning) {
+            long bitIndex = (long) start * bitsPerValue;
+            int word = (int) (bitIndex >>> 6);
+            int offset = (int) (bitIndex & 63);
+            long current = word < data.length ? data[word] : 0;
+            for (int i = destOffset; i < end; i++) {
+                long value = current >>> offset;
+                offset += bitsPerValue;
+                if (offset >= Long.SIZE) {
+                    offset -= Long.SIZE;
+                    word++;
+                    current = word < data.length ? data[word] : 0;
+                    if (offset > 0) value |= current << (bitsPerValue - offset);
+                }
+                dest[i] = (int) (value & mask);
+            }
+            return;
+        }
+        int word = wordIndex(start);
+        int slot = start - word * valuesPerLong;
+        long current = data[word] >>> (slot * bitsPerValue);
+        for (int i = destOffset; i < end; i++) {
+            if (slot == valuesPerLong) {
+                slot = 0;
+                current = data[++word];
+            }
+            dest[i] = (int) (current & mask);
+            current >>>= bitsPerValue;
+            slot++;
+        }
+    }
+
+    public void getAll(int[] dest) {
+        get(0, dest, 0, size);
+    }
+
+    /**
+     * Packs {@code length} values from {@code values} into this array, starting at {@code start}.
+     */
+    public void set(int start, int[] values, int valuesOffset, int length) {
+        for (int i = 0; i < length; i++) set(start + i, values[valuesOffset + i]);
+    }
+
+    /**
+     * Packs all values, replacing the current contents. Words are assembled in registers and written once each, and
+     * whole blocks are packed with SIMD instructions when {@link PackedInts#isVectorized() available}.
+     */
+    public void setAll(int[] values) {
+        int packed = PackedInts.blockSize(bitsPerValue, spanning) == 0 ? 0
+                : PackedInts.packBlocks(values, size, bitsPerValue, spanning, data);
+        setAllScalar(values, packed);
+    }
+
+    /**
+     * Packs the values from {@code start} on, which must be the first value of a word.
+     */
+    void setAllScalar(int[] values, int start) {
+        if (spanning) {
+            int word = (int) ((long) start * bitsPerValue >>> 6);
+            int offset = 0;
+            long current = 0;
+            for (int i = start; i < size; i++) {
+                long bits = values[i] & mask;
+                current |= bits << offset;
+                offset += bitsPerValue;
+                if (offset >= Long.SIZE) {
+                    data[word++] = current;
+                    offset -= Long.SIZE;
+                    current = offset > 0 ? bits >>> (bitsPerValue - offset) : 0;
+                }
+            }
+            if (word < data.length) data[word] = current;
+            return;
+        }
+        int index = start;
+        for (int word = start / valuesPerLong; word < data.length; word++) {
+            long current = 0;
+            for (int slot = 0; slot < valuesPerLong && index < size; slot++)
+                current |= (values[index++] & mask) << (slot * bitsPerValue);
+            data[word] = current;
+        }
+    }
+
+    public long[] getData() {
+        return data;
+    }
+
+    public int getBitsPerValue() {
+        return bitsPerValue;
+    }
+
+    public int size() {
+        return size;
+    }
+}
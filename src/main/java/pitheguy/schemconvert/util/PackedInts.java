@@ -0,0 +1,66 @@
+package pitheguy.schemconvert.util;
+
+/**
+ * Bulk operations on unpacked block data, with an optional SIMD implementation.
+ * <p>
+ * The SIMD paths use the incubating {@code jdk.incubator.vector} module and are only taken when the JVM was started
+ * with {@code --add-modules jdk.incubator.vector} and the hardware has vector registers. They produce exactly the same
+ * results as the scalar code. Setting the {@code schemconvert.vector} system property to {@code false} disables them.
+ */
+public final class PackedInts {
+    private static final boolean VECTORIZED = detectVectorSupport();
+
+    private PackedInts() {
+    }
+
+    private static boolean detectVectorSupport() {
+        if (!Boolean.parseBoolean(System.getProperty("schemconvert.vector", "true"))) return false;
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return false;
+        try {
+            return VectorPackedInts.isSupported();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    public static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    /**
+     * Replaces each of {@code length} values starting at {@code offset} with {@code table[value]}. Returns the position
+     * of the first value that is out of range for the table, in which case values from that position on are left
+     * untouched, or -1 if all values were translated.
+     */
+    public static int translate(int[] values, int offset, int length, int[] table) {
+        int translated = VECTORIZED ? VectorPackedInts.translate(values, offset, length, table) : 0;
+        return translateScalar(values, offset + translated, length - translated, table);
+    }
+
+    static int translateScalar(int[] values, int offset, int length, int[] table) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int value = values[i];
+            if (value < 0 || value >= table.length) return i;
+            values[i] = table[value];
+        }
+        return -1;
+    }
+
+    /**
+     * The number of values the SIMD paths handle at once, or 0 if they are unavailable. Bulk operations only use them
+     * for whole blocks that start at a multiple of this size.
+     */
+    static int blockSize(int bitsPerValue, boolean spanning) {
+        return VECTORIZED ? VectorPackedInts.blockValues(bitsPerValue, spanning) : 0;
+    }
+
+    static int unpackBlocks(long[] data, int bitsPerValue, boolean spanning, int start, int[] dest, int destOffset,
+            int length) {
+        return VectorPackedInts.unpack(data, bitsPerValue, spanning, start, dest, destOffset, length);
+    }
+
+    static int packBlocks(int[] values, int size, int bitsPerValue, boolean spanning, long[] data) {
+        return VectorPackedInts.pack(values, size, bitsPerValue, spanning, data);
+    }
+}
@@ -0,0 +1,115 @@
+package pitheguy.schemconvert.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Bulk encoding and decoding of unsigned LEB128 VarInts, as used for Sponge schematic block data. Values below 128 take
+ * a single byte, which is by far the most common case, so both directions copy runs of those without branching per
+ * byte where possible.
+ */
+public final class VarInts {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private VarInts() {
+    }
+
+    public static int size(int value) {
+        return (Integer.SIZE - 1 - Integer.numberOfLeadingZeros(value | 1)) / 7 + 1;
+    }
+
+    public static int size(int[] values, int offset, int length) {
+        int size = 0;
+        for (int i = offset; i < offset + length; i++) size += size(values[i]);
+        return size;
+    }
+
+    /**
+     * Encodes {@code length} values into {@code dest} starting at {@code destOffset}, which must have room for them,
+     * and returns the offset after the last byte written.
+     */
+    public static int encode(int[] values, int offset, int length, byte[] dest, int destOffset) {
+        int position = destOffset;
+        for (int i = offset; i < offset + length; i++) {
+            int value = values[i];
+            while ((value & ~0x7F) != 0) {
+                dest[position++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            dest[position++] = (byte) value;
+        }
+        return position;
+    }
+
+    public static byte[] encode(int[] values) {
+        byte[] encoded = new byte[size(values, 0, values.length)];
+        encode(values, 0, values.length, encoded, 0);
+        return encoded;
+    }
+
+    /**
+     * Decodes VarInts from input that arrives in chunks. A value may be split across two chunks, in which case the
+     * decoder keeps the partial value until the next call.
+     */
+    public static class Decoder {
+        private int value;
+        private int shift;
+        private int position;
+
+        /**
+         * Decodes up to {@code maxCount} values from {@code data[offset, end)} into {@code dest} and returns how many
+         * were decoded. Decoding stops early when {@code dest} is full; {@link #position()} then tells where to resume.
+         */
+        public int decode(byte[] data, int offset, int end, int[] dest, int destOffset, int maxCount) {
+            int i = offset;
+            int count = 0;
+            while (i < end && count < maxCount) {
+                if (shift == 0) {
+                    // Fast path: copy runs of single-byte values, eight at a time while none has its high bit set
+                    int out = destOffset + count;
+                    int limit = Math.min(end - i, maxCount - count);
+                    int run = 0;
+                    while (run + Long.BYTES <= limit && ((long) LONGS.get(data, i + run) & HIGH_BITS) == 0) {
+                        for (int j = 0; j < Long.BYTES; j++) dest[out + run + j] = data[i + run + j];
+                        run += Long.BYTES;
+                    }
+                    while (run < limit && data[i + run] >= 0) {
+                        dest[out + run] = data[i + run];
+                        run++;
+                    }
+                    i += run;
+                    count += run;
+                    if (i == end || count == maxCount) break;
+                }
+                byte b = data[i++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) != 0) {
+                    shift += 7;
+                    if (shift >= 35) throw new IllegalArgumentException("VarInt is too long");
+                    continue;
+                }
+                dest[destOffset + count++] = value;
+                value = 0;
+                shift = 0;
+            }
+            position = i;
+            return count;
+        }
+
+        /**
+         * The offset in the last input just after the bytes consumed by {@link #decode}.
+         */
+        public int position() {
+            return position;
+        }
+
+        /**
+         * Whether a value has been started but not finished.
+         */
+        public boolean isPartial() {
+            return shift != 0;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package pitheguy.schemconvert.util;
+
+import jdk.incubator.vector.*;
+
+import java.util.Arrays;
+
+/**
+ * SIMD implementations of the bulk operations in {@link PackedInts}. This class is only loaded after
+ * {@link PackedInts} has checked that the vector module is present.
+ * <p>
+ * Both packed layouts repeat with a fixed period: in the spanning layout 64 values fill exactly {@code bitsPerValue}
+ * words, and in the non-spanning layout {@code 64 / bitsPerValue} values fill one word. Work is done in blocks of one
+ * period per vector lane, so the word and shift of every value in a block can be precomputed once per bit width. A
+ * vector of consecutive values never touches more words than there are lanes, so words are moved into place with
+ * shuffles of a contiguous load rather than with gathers.
+ */
+final class VectorPackedInts {
+    // With fewer than 8 lanes the shuffles and conversions cost more than the scalar code saves
+    private static final int MIN_LANES = 8;
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = LONGS.length() < MIN_LANES ? null
+            : VectorSpecies.of(int.class, VectorShape.forBitSize(LONGS.vectorBitSize() / 2));
+    private static final VectorSpecies<Integer> TRANSLATE_INTS = IntVector.SPECIES_PREFERRED;
+    private static final Layout[] SPANNING = new Layout[Integer.SIZE + 1];
+    private static final Layout[] NON_SPANNING = new Layout[Integer.SIZE + 1];
+
+    static {
+        if (INTS != null) {
+            for (int bits = 1; bits <= Integer.SIZE; bits++) {
+                SPANNING[bits] = new Layout(bits, true);
+                NON_SPANNING[bits] = new Layout(bits, false);
+            }
+        }
+    }
+
+    private VectorPackedInts() {
+    }
+
+    static boolean isSupported() {
+        return INTS != null;
+    }
+
+    private static Layout layout(int bitsPerValue, boolean spanning) {
+        return spanning ? SPANNING[bitsPerValue] : NON_SPANNING[bitsPerValue];
+    }
+
+    static int blockValues(int bitsPerValue, boolean spanning) {
+        return layout(bitsPerValue, spanning).blockValues;
+    }
+
+    /**
+     * Unpacks as many whole blocks as fit in {@code length} and returns the number of values written. {@code start}
+     * must be a multiple of the block size.
+     */
+    static int unpack(long[] data, int bitsPerValue, boolean spanning, int start, int[] dest, int destOffset,
+            int length) {
+        Layout layout = layout(bitsPerValue, spanning);
+        int lanes = LONGS.length();
+        long mask = (1L << bitsPerValue) - 1;
+        int firstBlock = start / layout.blockValues;
+        // The last chunk of a block loads a full vector of words, which may run past the end of the data
+        int blocks = Math.min(length / layout.blockValues,
+                Math.floorDiv(data.length - layout.windowEnd, layout.blockWords) - firstBlock + 1);
+        for (int block = 0; block < blocks; block++) {
+            int wordBase = (firstBlock + block) * layout.blockWords;
+            int out = destOffset + block * layout.blockValues;
+            for (int chunk = 0, k = 0; k < layout.blockValues; chunk++, k += lanes) {
+                LongVector words = LongVector.fromArray(LONGS, data, wordBase + layout.firstWord[chunk]);
+                LongVector value = words.rearrange(layout.wordShuffles[chunk])
+                        .lanewise(VectorOperators.LSHR, LongVector.fromArray(LONGS, layout.shift, k));
+                if (layout.crossing[chunk]) {
+                    LongVector high = words.rearrange(layout.nextWordShuffles[chunk])
+                            .lanewise(VectorOperators.LSHL, LongVector.fromArray(LONGS, layout.highShift, k));
+                    value = value.or(high.and(LongVector.fromArray(LONGS, layout.highMask, k)));
+                }
+                value.and(mask).convertShape(VectorOperators.L2I, INTS, 0).reinterpretAsInts().intoArray(dest, out + k);
+            }
+        }
+        return Math.max(blocks, 0) * layout.blockValues;
+    }
+
+    /**
+     * Packs as many whole blocks as fit in {@code size} values, starting from the first value, and returns the number
+     * of values packed. The words they occupy are overwritten. Only the non-spanning layout is handled; in the
+     * spanning layout the extra reductions for values that cross words cost more than the scalar loop.
+     */
+    static int pack(int[] values, int size, int bitsPerValue, boolean spanning, long[] data) {
+        if (spanning) return 0;
+        Layout layout = layout(bitsPerValue, false);
+        int lanes = LONGS.length();
+        int blocks = size / layout.blockValues;
+        long mask = (1L << bitsPerValue) - 1;
+        for (int block = 0; block < blocks; block++) {
+            int valueBase = block * layout.blockValues;
+            int wordBase = block * layout.blockWords;
+            Arrays.fill(data, wordBase, wordBase + layout.blockWords, 0);
+            for (int chunk = 0, k = 0; k < layout.blockValues; chunk++, k += lanes) {
+                LongVector value = ((LongVector) IntVector.fromArray(INTS, values, valueBase + k)
+                        .convertShape(VectorOperators.I2L, LONGS, 0)).and(mask)
+                        .lanewise(VectorOperators.LSHL, LongVector.fromArray(LONGS, layout.shift, k));
+                // Each word a chunk touches is the OR of the lanes that land in it
+                VectorMask<Long>[] wordLanes = layout.wordLanes[chunk];
+                for (int word = 0; word < wordLanes.length; word++)
+                    data[wordBase + layout.firstWord[chunk] + word] |= value.reduceLanes(VectorOperators.OR, wordLanes[word]);
+            }
+        }
+        return blocks * layout.blockValues;
+    }
+
+    /**
+     * Translates whole vectors of values through the table and returns the number translated. Stops early at the
+     * first vector containing a value that is out of range, leaving it for the scalar path to report.
+     */
+    static int translate(int[] values, int offset, int length, int[] table) {
+        int lanes = TRANSLATE_INTS.length();
+        int end = offset + length - lanes;
+        int i = offset;
+        for (; i <= end; i += lanes) {
+            IntVector indices = IntVector.fromArray(TRANSLATE_INTS, values, i);
+            if (indices.compare(VectorOperators.UNSIGNED_GE, table.length).anyTrue()) break;
+            IntVector.fromArray(TRANSLATE_INTS, table, 0, values, i).intoArray(values, i);
+        }
+        return i - offset;
+    }
+
+    /**
+     * Precomputed positions for one block of {@code blockValues} values packed into {@code blockWords} words. Values
+     * are handled in chunks of one vector; word indices are relative to the first word of their chunk.
+     */
+    private static class Layout {
+        private final int blockValues;
+        private final int blockWords;
+        private final int windowEnd;
+        private final int[] firstWord;
+        private final boolean[] crossing;
+        private final long[] shift;
+        private final long[] highShift;
+        private final long[] highMask;
+        private final VectorShuffle<Long>[] wordShuffles;
+        private final VectorShuffle<Long>[] nextWordShuffles;
+        private final VectorMask<Long>[][] wordLanes;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Layout(int bits, boolean spanning) {
+            int lanes = LONGS.length();
+            int periodValues = spanning ? Long.SIZE : Long.SIZE / bits;
+            blockValues = periodValues * lanes;
+            blockWords = (spanning ? bits : 1) * lanes;
+            int chunks = blockValues / lanes;
+            firstWord = new int[chunks];
+            crossing = new boolean[chunks];
+            shift = new long[blockValues];
+            highShift = new long[blockValues];
+            highMask = new long[blockValues];
+            wordShuffles = new VectorShuffle[chunks];
+            nextWordShuffles = new VectorShuffle[chunks];
+            wordLanes = new VectorMask[chunks][];
+            int[] wordIndex = new int[lanes];
+            int[] nextWordIndex = new int[lanes];
+            int windowEnd = 0;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int wordsTouched = 0;
+                for (int lane = 0; lane < lanes; lane++) {
+                    int k = chunk * lanes + lane;
+                    int word;
+                    boolean crosses = false;
+                    if (spanning) {
+                        int bit = k * bits;
+                        word = bit >>> 6;
+                        shift[k] = bit & 63;
+                        crosses = shift[k] + bits > Long.SIZE;
+                    } else {
+                        word = k / periodValues;
+                        shift[k] = (long) (k % periodValues) * bits;
+                    }
+                    if (lane == 0) firstWord[chunk] = word;
+                    wordIndex[lane] = word - firstWord[chunk];
+                    nextWordIndex[lane] = crosses ? wordIndex[lane] + 1 : wordIndex[lane];
+                    highShift[k] = crosses ? Long.SIZE - shift[k] : 0;
+                    highMask[k] = crosses ? -1L : 0;
+                    crossing[chunk] |= crosses;
+                    wordsTouched = Math.max(wordsTouched, nextWordIndex[lane] + 1);
+                }
+                wordShuffles[chunk] = VectorShuffle.fromArray(LONGS, wordIndex, 0);
+                nextWordShuffles[chunk] = VectorShuffle.fromArray(LONGS, nextWordIndex, 0);
+                wordLanes[chunk] = new VectorMask[wordsTouched];
+                for (int word = 0; word < wordsTouched; word++) {
+                    boolean[] inWord = new boolean[lanes];
+                    for (int lane = 0; lane < lanes; lane++) inWord[lane] = wordIndex[lane] == word;
+                    wordLanes[chunk][word] = VectorMask.fromArray(LONGS, inWord, 0);
+                }
+                windowEnd = Math.max(windowEnd, firstWord[chunk] + lanes);
+            }
+            this.windowEnd = windowEnd;
+        }
+    }
+}